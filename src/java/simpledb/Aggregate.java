@@ -1,11 +1,19 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * Groups are aggregated in memory up to a budget. Once it is reached, tuples
+ * of the groups already in memory are still merged there, and the tuples of
+ * any other group are partitioned by the hash of the group field into
+ * {@link SpillFile}s. After the groups in memory are returned, each
+ * partition is aggregated in turn the same way, its own overflow being
+ * partitioned again.
  */
 public class Aggregate extends Operator {
 
@@ -15,13 +23,39 @@ public class Aggregate extends Operator {
     private int afield;
     private int gfield;
     private Aggregator.Op aop;
-    private OpIterator[] children;
 //    private Map<Field, List<Tuple>> map;
 //    private List<Tuple> list;
 //    private Iterator<Map.Entry<Field, List<Tuple>>> entries;
 //    private Iterator<Tuple> iterator;
     private Aggregator aggregator;
     private OpIterator iterator;
+
+    /** Default number of groups aggregated in memory. */
+    public final static int MAX_GROUPS = 100000;
+
+    /** Number of partitions the tuples of groups beyond the budget are split into. */
+    public final static int NUM_PARTITIONS = 16;
+
+    private int memoryGroups = MAX_GROUPS;
+    private boolean spilled = false;
+
+    /** A spilled partition, and how many times its tuples were partitioned. */
+    private static class Partition {
+        final SpillFile file;
+        final int level;
+
+        Partition(SpillFile file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
+    // partitions waiting to be aggregated
+    private LinkedList<Partition> pending = new LinkedList<Partition>();
+    // while reading an input: the partitions its overflow goes to, and the
+    // level of the input
+    private SpillFile[] parts = null;
+    private int level = 0;
     /**
      * Constructor.
      * 
@@ -46,16 +80,34 @@ public class Aggregate extends Operator {
         this.afield = afield;
         this.gfield = gfield;
         this.aop = aop;
+    }
+
+    private Aggregator newAggregator() {
         Type type = child.getTupleDesc().getFieldType(afield);
         Type gtype = null;
         if (gfield != -1) gtype = child.getTupleDesc().getFieldType(gfield);
         if (type == Type.INT_TYPE) {
-            aggregator = new IntegerAggregator(gfield, gtype, afield, aop);
+            return new IntegerAggregator(gfield, gtype, afield, aop);
         } else {
-            aggregator = new StringAggregator(gfield, gtype, afield, aop);
+            return new StringAggregator(gfield, gtype, afield, aop);
         }
     }
 
+    /**
+     * Sets the number of groups the aggregate keeps in memory. The tuples
+     * of further groups are partitioned to disk.
+     */
+    public void setMemoryBudget(int groups) {
+        if (groups < 1)
+            throw new IllegalArgumentException("an aggregate needs room for a group");
+        this.memoryGroups = groups;
+    }
+
+    /** @return whether the last open() had to partition tuples to disk */
+    public boolean spilled() {
+        return spilled;
+    }
+
     /**
      * @return If this aggregate is accompanied by a groupby, return the groupby
      *         field index in the <b>INPUT</b> tuples. If not, return
@@ -111,13 +163,105 @@ public class Aggregate extends Operator {
 	// some code goes here
         super.open();
         child.open();
-        while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
+        build();
+    }
+
+    /**
+     * Aggregates the child, spilling the tuples of the groups that do not
+     * fit in memory. Called by open() once the child is open.
+     */
+    protected void build() throws DbException, TransactionAbortedException {
+        dropPartitions();
+        spilled = false;
+        aggregator = newAggregator();
+        level = 0;
+        try {
+            while (child.hasNext()) {
+                merge(child.next());
+            }
+            queueParts();
+        } catch (IOException e) {
+            throw new DbException("could not spill aggregate input: " + e.getMessage());
+        }
+        iterator = aggregator.iterator();
+        iterator.open();
+    }
+
+    /**
+     * Aggregates the next pending partition, spilling again the tuples of
+     * the groups that do not fit in memory.
+     */
+    private void aggregatePartition(Partition part)
+            throws DbException, TransactionAbortedException {
+        aggregator = newAggregator();
+        level = part.level;
+        try {
+            Iterator<Tuple> it = part.file.iterator();
+            while (it.hasNext()) {
+                merge(it.next());
+            }
+            queueParts();
+        } catch (IOException e) {
+            throw new DbException("could not spill aggregate input: " + e.getMessage());
         }
+        part.file.delete();
         iterator = aggregator.iterator();
         iterator.open();
     }
 
+    /**
+     * Merges a tuple into its group, or writes it to its partition if its
+     * group is not in memory and there is no room for another.
+     */
+    private void merge(Tuple t) throws IOException {
+        if (gfield != Aggregator.NO_GROUPING && aggregator.numGroups() >= memoryGroups) {
+            Field group = t.getField(gfield);
+            if (!aggregator.hasGroup(group)) {
+                if (parts == null) {
+                    parts = new SpillFile[NUM_PARTITIONS];
+                    spilled = true;
+                }
+                int p = partitionOf(group, level);
+                if (parts[p] == null) parts[p] = new SpillFile(child.getTupleDesc());
+                parts[p].add(t);
+                return;
+            }
+        }
+        aggregator.mergeTupleIntoGroup(t);
+    }
+
+    private static int partitionOf(Field group, int level) {
+        // a different mix at each level, so that a partition's groups spread
+        // over the partitions made from it
+        int h = group.hashCode() ^ level * 0x632BE5AB;
+        return Math.floorMod(h * 0x9E3779B9 >>> 8, NUM_PARTITIONS);
+    }
+
+    /** Queues the partitions written while reading an input. */
+    private void queueParts() throws IOException {
+        if (parts == null) return;
+        for (SpillFile f : parts) {
+            if (f == null) continue;
+            f.finish();
+            pending.add(new Partition(f, level + 1));
+        }
+        parts = null;
+    }
+
+    /** Deletes the spill files, if any. */
+    private void dropPartitions() {
+        for (Partition part : pending) {
+            part.file.delete();
+        }
+        pending.clear();
+        if (parts != null) {
+            for (SpillFile f : parts) {
+                if (f != null) f.delete();
+            }
+            parts = null;
+        }
+    }
+
 
     /**
      * Returns the next tuple. If there is a group by field, then the first
@@ -128,13 +272,22 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// some code goes here
-        if (!iterator.hasNext()) return null;
+        while (!iterator.hasNext()) {
+            if (pending.isEmpty()) return null;
+            aggregatePartition(pending.removeFirst());
+        }
         return iterator.next();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
 	// some code goes here
-        iterator.rewind();
+        if (spilled) {
+            // the groups returned so far are no longer in memory
+            child.rewind();
+            build();
+        } else {
+            iterator.rewind();
+        }
     }
 
     /**
@@ -173,19 +326,21 @@ public class Aggregate extends Operator {
     public void close() {
 	// some code goes here
         super.close();
-        iterator.close();
+        if (iterator != null) iterator.close();
+        child.close();
+        dropPartitions();
     }
 
     @Override
     public OpIterator[] getChildren() {
 	// some code goes here
-	    return children;
+	    return new OpIterator[]{child};
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
 	// some code goes here
-        this.children = children;
+        this.child = children[0];
     }
     
 }
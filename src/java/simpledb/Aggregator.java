@@ -76,6 +76,17 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * @return the number of distinct group values merged so far
+     */
+    public int numGroups();
+
+    /**
+     * @param group a group value, or null if there is no grouping
+     * @return whether tuples of the group have been merged
+     */
+    public boolean hasGroup(Field group);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
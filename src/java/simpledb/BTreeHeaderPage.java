@@ -13,6 +13,7 @@ import java.io.*;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn = -1;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -264,6 +265,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
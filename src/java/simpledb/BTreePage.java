@@ -13,6 +13,7 @@ import java.io.*;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	protected volatile long lsn = -1;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -128,6 +129,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
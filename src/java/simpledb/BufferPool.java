@@ -4,6 +4,7 @@ import java.io.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -15,6 +16,25 @@ import java.util.concurrent.locks.ReentrantLock;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is a ConcurrentHashMap, so a getPage() that hits in the
+ * cache takes no pool-wide lock. Changes to the set of cached pages
+ * (adding, evicting, discarding, flushing) synchronize on the pool itself,
+ * which also keeps the lock ordering that LogFile relies on; they run
+ * concurrently with lookups.
+ * <p>
+ * Optionally, heap file pages are read into the frames of an off-heap
+ * {@link FrameArena} instead of heap arrays, so the pool's size is bounded
+ * in bytes of direct memory and does not add to the heap the garbage
+ * collector traces. Pages of other files, and pages read when the arena has
+ * no free frame, are kept on the heap. A page that leaves the pool gives its
+ * frame back to the arena at once.
+ * <p>
+ * By default the pool FORCEs: a committing transaction's pages are written
+ * to their files before it commits. With {@link #setForce(boolean)} off, a
+ * commit only logs its pages and waits for the log, and a {@link PageWriter}
+ * thread writes them back later; until then they are in the dirty page
+ * table, so a checkpoint keeps their log records and recovery redoes them.
  * 
  * @Threadsafe, all fields are final
  */
@@ -30,18 +50,63 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Largest number of frames a sequential scan's BufferRing may use. */
+    public static final int MAX_SCAN_RING_PAGES = 32;
+
     private int numPages;
 
     private LockManager lockManager = LockManager.getInstance();
 
+    private final EvictionPolicy evictionPolicy;
+
+    /** Direct frames for cached heap file pages, or null to keep them on the heap. */
+    private final FrameArena arena;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder pagesWritten = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    /** The background writer when the pool does not FORCE, null when it does. */
+    private volatile PageWriter writer = null;
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, evicting the
+     * least recently used page when it is full.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
         // some code goes here
+        this(numPages, new LRUEvictionPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to pick pages to evict.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the replacement policy; must not be shared with
+     *   another BufferPool
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
+        this(numPages, evictionPolicy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to pick pages to evict, optionally keeping heap file
+     * pages in an off-heap arena of numPages frames.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the replacement policy; must not be shared with
+     *   another BufferPool
+     * @param offHeap whether to read heap file pages into direct frames
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy, boolean offHeap) {
         this.numPages = numPages;
+        this.evictionPolicy = evictionPolicy;
+        this.arena = offHeap ? new FrameArena(numPages, pageSize) : null;
     }
     
     public static int getPageSize() {
@@ -58,7 +123,126 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
-    private Map<PageId, Page> map = new LinkedHashMap<>();
+    private final Map<PageId, Page> map = new ConcurrentHashMap<>();
+
+    /**
+     * The dirty page table: pages whose change was logged but may not be
+     * written yet, with the offset of the first such record. Entries are
+     * only added with the LogFile monitor held.
+     */
+    private final Map<PageId, Long> recLsns = new ConcurrentHashMap<>();
+
+    /** Cached pages that were read through a BufferRing, and the ring. */
+    private final Map<PageId, BufferRing> ringPages = new ConcurrentHashMap<>();
+
+    /**
+     * Transactions inside insertTuple or deleteTuple, and the pages each
+     * has fetched for writing there. The file may still be changing those
+     * pages, which are therefore pinned until they are marked dirty.
+     */
+    private final Map<TransactionId, List<PageId>> pinning = new ConcurrentHashMap<>();
+
+    /** Pinned pages, and how many pinning transactions hold each. Guarded by this. */
+    private final Map<PageId, Integer> pins = new HashMap<>();
+
+    /** @return the number of getPage calls served from the cache */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** @return the number of getPage calls that had to read from disk */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** @return the number of pages written back to their files */
+    public long getPagesWritten() {
+        return pagesWritten.sum();
+    }
+
+    /**
+     * @return the number of writes issued for the pages written back; a run
+     *   of consecutive heap file pages takes a single write
+     */
+    public long getWriteCount() {
+        return writes.sum();
+    }
+
+    /** @return the number of deadlocks the lock manager has broken */
+    public long getDeadlockCount() {
+        return lockManager.getDeadlockCount();
+    }
+
+    /** @return the arena of off-heap frames, or null if pages are kept on the heap */
+    public FrameArena getFrameArena() {
+        return arena;
+    }
+
+    /** @return the maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * Returns a BufferRing for a sequential scan over a file of the given
+     * size, or null if the file is small enough to be cached normally. A
+     * scan of a file larger than the whole pool would cycle every frame
+     * without getting any hits on a rescan, so such files get a ring of an
+     * eighth of the pool, at most {@link #MAX_SCAN_RING_PAGES} frames.
+     *
+     * @param filePages the number of pages the scan will read
+     */
+    public BufferRing newScanRing(int filePages) {
+        if (filePages <= numPages) return null;
+        return new BufferRing(Math.max(1, Math.min(MAX_SCAN_RING_PAGES, numPages / 8)));
+    }
+
+    /**
+     * Returns a copy of the dirty page table, for a checkpoint: the pages
+     * whose logged changes may not have reached the disk yet, each with the
+     * offset of the first log record recovery must redo for it. Does not
+     * synchronize on the pool.
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(recLsns);
+    }
+
+    /** Resets the hit, miss and write counters to zero. */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        pagesWritten.reset();
+        writes.reset();
+    }
+
+    /**
+     * Chooses whether committing transactions write their pages to disk
+     * (FORCE, the default) or only log them, leaving a background
+     * {@link PageWriter} to write them later. Turning FORCE back on stops
+     * the writer and writes back every page it had not written yet.
+     */
+    public void setForce(boolean force) throws IOException {
+        PageWriter stopping;
+        synchronized (this) {
+            if (force == (writer == null)) return;
+            if (!force) {
+                writer = new PageWriter(this, PageWriter.DEFAULT_INTERVAL_MILLIS,
+                                        PageWriter.DEFAULT_BATCH_PAGES);
+                writer.start();
+                return;
+            }
+            stopping = writer;
+            writer = null;
+        }
+        // the writer needs this pool's monitor to finish its round
+        stopping.shutdown();
+        writeLoggedPages(Integer.MAX_VALUE);
+    }
+
+    /** @return whether committing transactions write their pages to disk */
+    public boolean isForce() {
+        return writer == null;
+    }
 
     /**
      * Retrieve the specified page with the associated permissions.
@@ -76,6 +260,22 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page on behalf of a scan that uses a private
+     * BufferRing. Pages that are not yet cached are read into the ring's
+     * frames rather than taking frames from the rest of the pool.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan's ring, or null to cache the page normally
+     * @see #newScanRing(int)
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
         throws TransactionAbortedException, DbException {
         // some code goes here
         boolean commit;
@@ -86,20 +286,92 @@ public class BufferPool {
         if (commit == false) {
             throw new TransactionAbortedException();
         }
-        synchronized (this) {
-            if (map.containsKey(pid)) return map.get(pid);
+        if (perm == Permissions.READ_WRITE) {
+            // pinned before it is cached, so no eviction comes in between
+            List<PageId> pinned = pinning.get(tid);
+            if (pinned != null) pin(pid, pinned);
         }
-        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        addPage(page);
-        return page;
+        Page page = map.get(pid);
+        if (page != null) {
+            hits.increment();
+            if (ring == null) {
+                // someone else wants this page too: it joins the working set
+                if (ringPages.containsKey(pid)) ringPages.remove(pid);
+                evictionPolicy.pageAccessed(pid);
+            }
+            return page;
+        }
+        misses.increment();
+        return addPage(readPage(pid), ring);
+    }
+
+    /**
+     * Reads a page from its file, into a direct frame if the pool has an
+     * arena with a free frame of the current page size.
+     */
+    private Page readPage(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (arena != null && file instanceof HeapFile && arena.getFrameSize() == pageSize) {
+            PageBuffer frame = arena.allocate();
+            if (frame != null) return ((HeapFile) file).readPage(pid, frame);
+        }
+        return file.readPage(pid);
     }
 
-    private synchronized void addPage(Page page) throws DbException {
-        if (map.containsKey(page.getId())) return;
+    private Page addPage(Page page) throws DbException {
+        return addPage(page, null);
+    }
+
+    /**
+     * Caches the page, evicting another one if the pool is full. If a ring is
+     * given and full, its oldest page is dropped first.
+     *
+     * @return the cached copy of the page, which is the page passed in unless
+     *   another thread cached the same page first
+     */
+    private synchronized Page addPage(Page page, BufferRing ring) throws DbException {
+        Page cached = map.get(page.getId());
+        if (cached != null) {
+            if (cached != page) releaseFrame(page);
+            return cached;
+        }
+        if (ring != null && ring.isFull()) {
+            recycle(ring.poll(), ring);
+        }
         if (map.size() >= numPages) {
            evictPage();
         }
         map.put(page.getId(), page);
+        evictionPolicy.pageAdded(page.getId());
+        if (ring != null) {
+            ring.add(page.getId());
+            ringPages.put(page.getId(), ring);
+        }
+        return page;
+    }
+
+    /**
+     * Drops a page that the given ring brought into the pool, unless the page
+     * has since been used outside the ring, dirtied, or logged but not
+     * written back; such pages stay in the pool under the control of the
+     * eviction policy.
+     */
+    private synchronized void recycle(PageId pid, BufferRing ring) {
+        if (ringPages.get(pid) != ring) return;
+        ringPages.remove(pid);
+        Page page = map.get(pid);
+        if (page == null || page.isDirty() != null || recLsns.containsKey(pid) || pins.containsKey(pid)) return;
+        map.remove(pid);
+        evictionPolicy.pageRemoved(pid);
+        releaseFrame(page);
+    }
+
+    /**
+     * Returns the frame of a page that left the pool to the arena right
+     * away, rather than when the collector finds the page unreachable.
+     */
+    private void releaseFrame(Page page) {
+        if (page instanceof HeapPage) ((HeapPage) page).releaseFrame();
     }
 
     /**
@@ -146,8 +418,15 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        LogFile log = Database.getLogFile();
         if (commit == true) {
             flushPages(tid);
+            // a transaction not run through Transaction has no COMMIT yet
+            if (log.isActive(tid)) log.logCommit(tid);
+        } else if (log.isActive(tid)) {
+            // pages it had stolen are on disk, where only its log records
+            // can undo them; logAbort rolls back and drops the other pages
+            log.logAbort(tid);
         } else {
             restorePages(tid);
         }
@@ -173,11 +452,16 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-        for (Page page: pages) {
-            page.markDirty(true, tid);
-//            map.put(page.getId(), page);
-            addPage(page);
+        boolean pinned = startPinning(tid);
+        try {
+            ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
+            for (Page page: pages) {
+                page.markDirty(true, tid);
+//                map.put(page.getId(), page);
+                addPage(page);
+            }
+        } finally {
+            if (pinned) stopPinning(tid);
         }
     }
 
@@ -198,27 +482,58 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).
-                deleteTuple(tid, t);
-        for (Page page: pages) {
-            page.markDirty(true, tid);
-//            map.put(page.getId(), page);
-            addPage(page);
+        boolean pinned = startPinning(tid);
+        try {
+            ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).
+                    deleteTuple(tid, t);
+            for (Page page: pages) {
+                page.markDirty(true, tid);
+//                map.put(page.getId(), page);
+                addPage(page);
+            }
+        } finally {
+            if (pinned) stopPinning(tid);
         }
     }
 
+    /**
+     * Starts pinning the pages the transaction fetches for writing.
+     *
+     * @return false if the transaction is pinning pages already, as when
+     *   a file's insert calls back into the pool
+     */
+    private boolean startPinning(TransactionId tid) {
+        return pinning.putIfAbsent(tid, new ArrayList<PageId>()) == null;
+    }
+
+    /** Unpins the pages the transaction pinned since startPinning. */
+    private synchronized void stopPinning(TransactionId tid) {
+        for (PageId pid : pinning.remove(tid)) {
+            int count = pins.get(pid);
+            if (count == 1) {
+                pins.remove(pid);
+            } else {
+                pins.put(pid, count - 1);
+            }
+        }
+    }
+
+    private synchronized void pin(PageId pid, List<PageId> pinned) {
+        if (pinned.contains(pid)) return;
+        pinned.add(pid);
+        Integer count = pins.get(pid);
+        pins.put(pid, count == null ? 1 : count + 1);
+    }
+
     /**
      * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * NB: this writes changes of uncommitted transactions too; like an
+     *     eviction under STEAL, they are logged first so they can be undone.
      */
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Iterator<Map.Entry<PageId, Page>> iterator = map.entrySet().iterator();
-        while (iterator.hasNext()) {
-            flushPage(iterator.next().getKey());
-        }
+        flush(new ArrayList<>(map.keySet()));
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -232,11 +547,23 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        Iterator<Map.Entry<PageId, Page>> iterator = map.entrySet().iterator();
-        if (iterator.hasNext()) {
-            iterator.next();
-            iterator.remove();
+        if (recLsns.containsKey(pid)) {
+            // committed changes that were only logged go to disk first
+            try {
+                writeLogged(Collections.singletonList(pid));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        Page page = map.remove(pid);
+        if (page != null) {
+            ringPages.remove(pid);
+            evictionPolicy.pageRemoved(pid);
+            releaseFrame(page);
         }
+        // the copy on disk may have room that the dropped one had not
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (file instanceof HeapFile) ((HeapFile) file).pageDiscarded(pid.getPageNumber());
     }
 
     /**
@@ -246,68 +573,236 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = map.get(pid);
-        if (page == null) return;
-        if (page.isDirty() != null) {
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        flush(Collections.singletonList(pid));
+    }
+
+    /**
+     * Flushes the dirty pages among the given ones, and writes back those
+     * that were only logged. Each dirty page's change is logged first; the
+     * log is then forced once, through the last record for any of the
+     * pages, before any of them is written (write-ahead logging). A written
+     * page becomes its own before image, so the next record for it only
+     * holds what changed since.
+     */
+    private synchronized void flush(Collection<PageId> pids) throws IOException {
+        LogFile log = Database.getLogFile();
+        List<Page> images = new ArrayList<>();
+        List<Page> dirty = new ArrayList<>();
+        long lsn = -1;
+        for (PageId pid : pids) {
+            Page page = map.get(pid);
+            if (page == null) continue;
+            TransactionId dirtier = page.isDirty();
+            if (dirtier == null) {
+                if (!recLsns.containsKey(pid)) continue;
+                // the before image is what was logged
+                images.add(page.getBeforeImage());
+            } else {
+                logPage(log, dirtier, page);
+                images.add(page);
+                dirty.add(page);
+            }
+            lsn = Math.max(lsn, page.getLsn());
+        }
+        if (images.isEmpty()) return;
+        log.force(lsn);
+        writeBack(images);
+        for (Page page : images) {
+            recLsns.remove(page.getId());
+        }
+        for (Page page : dirty) {
+            page.markDirty(false, null);
+            page.setBeforeImage();
+        }
+    }
+
+    /**
+     * Logs the change to a dirty page since its before image, and enters
+     * the page in the dirty page table.
+     */
+    private void logPage(LogFile log, TransactionId dirtier, Page page) throws IOException {
+        synchronized (log) {
+            log.logWrite(dirtier, page.getBeforeImage(), page);
+            recLsns.putIfAbsent(page.getId(), page.getLsn());
+        }
+    }
+
+    /**
+     * Logs the given dirty pages without writing them (NO-FORCE commit).
+     * Each page's logged state becomes its before image, and the page stays
+     * in the dirty page table until it is written back.
+     */
+    private synchronized void logPages(Collection<PageId> pids) throws IOException {
+        LogFile log = Database.getLogFile();
+        for (PageId pid : pids) {
+            Page page = map.get(pid);
+            if (page == null) continue;
+            TransactionId dirtier = page.isDirty();
+            if (dirtier == null) continue;
+            logPage(log, dirtier, page);
             page.markDirty(false, null);
+            page.setBeforeImage();
+        }
+    }
+
+    /**
+     * Writes back up to max pages whose changes were logged but not written
+     * yet. This is the work of the {@link PageWriter}. A page that a
+     * transaction has since changed again is written as it was logged,
+     * which is its before image.
+     *
+     * @return the number of pages written
+     */
+    public synchronized int writeLoggedPages(int max) throws IOException {
+        List<PageId> pids = new ArrayList<>();
+        for (PageId pid : recLsns.keySet()) {
+            if (pids.size() >= max) break;
+            pids.add(pid);
+        }
+        writeLogged(pids);
+        return pids.size();
+    }
+
+    private void writeLogged(Collection<PageId> pids) throws IOException {
+        List<Page> images = new ArrayList<>();
+        long lsn = -1;
+        for (PageId pid : pids) {
+            Page page = map.get(pid);
+            if (page == null) continue;
+            images.add(page.getBeforeImage());
+            lsn = Math.max(lsn, page.getLsn());
+        }
+        if (images.isEmpty()) return;
+        Database.getLogFile().force(lsn);
+        writeBack(images);
+        for (Page page : images) {
+            recLsns.remove(page.getId());
         }
     }
 
+    /**
+     * Writes pages to their files. The pages of a heap file go in one call,
+     * which coalesces runs of consecutive pages into single writes.
+     */
+    private void writeBack(List<Page> pages) throws IOException {
+        Map<Integer, List<Page>> byTable = new LinkedHashMap<>();
+        for (Page page : pages) {
+            List<Page> list = byTable.get(page.getId().getTableId());
+            if (list == null) {
+                list = new ArrayList<>();
+                byTable.put(page.getId().getTableId(), list);
+            }
+            list.add(page);
+        }
+        for (Map.Entry<Integer, List<Page>> e : byTable.entrySet()) {
+            DbFile file = Database.getCatalog().getDatabaseFile(e.getKey());
+            if (file instanceof HeapFile) {
+                writes.add(((HeapFile) file).writePages(e.getValue()));
+            } else {
+                for (Page page : e.getValue()) {
+                    file.writePage(page);
+                }
+                writes.add(e.getValue().size());
+            }
+        }
+        pagesWritten.add(pages.size());
+    }
+
     private synchronized  void restorePage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = map.get(pid);
-        page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        page.markDirty(false, null);
+        // the cached copy has changes that were never written, so it is
+        // dropped and the next getPage reads the page again; discardPage
+        // first writes back committed changes only logged. Changes that
+        // were written (STEAL) are undone on disk by LogFile.rollback(),
+        // which runs before this on every abort that logged anything
+        discardPage(pid);
     }
 
     public synchronized  void restorePages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        List<PageId> pages = lockManager.getPages(tid);
-        if (pages != null) {
-            for (PageId pageId : pages) {
-                restorePage(pageId);
-            }
+        for (PageId pageId : dirtiedBy(tid)) {
+            restorePage(pageId);
+        }
+    }
+
+    /**
+     * Returns the cached pages dirtied by the transaction. The pool is
+     * searched rather than the transaction's page locks, since pages under
+     * an escalated table lock have no page lock of their own.
+     */
+    private List<PageId> dirtiedBy(TransactionId tid) {
+        List<PageId> pages = new ArrayList<>();
+        for (Page page : map.values()) {
+            if (tid.equals(page.isDirty())) pages.add(page.getId());
         }
+        return pages;
     }
 
     /** Write all pages of the specified transaction to disk.
+        Without FORCE, the pages are only logged, and the background
+        writer writes them later.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        List<PageId> pages = lockManager.getPages(tid);
-        if (pages != null) {
-            for (PageId pageId : pages) {
-                flushPage(pageId);
-            }
+        if (writer == null) {
+            flush(dirtiedBy(tid));
+        } else {
+            logPages(dirtiedBy(tid));
         }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * <p>
+     * Clean pages are evicted first, then pages whose committed changes are
+     * logged but not yet written. If every cached page is dirty, a page
+     * of a transaction that has not committed is written back anyway
+     * (STEAL): flush() logs its change and forces the log before writing
+     * it, so LogFile.rollback() can undo the write if the transaction
+     * aborts, and recovery can undo it after a crash. A transaction may
+     * therefore touch more pages than the pool holds. Pages pinned by an
+     * insert or delete that has not marked them dirty yet are never chosen.
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        Iterator<Map.Entry<PageId, Page>> iterator = map.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<PageId, Page> entry = iterator.next();
-            if (entry.getValue().isDirty() == null) {
-                PageId pid = entry.getKey();
-                try {
-                    flushPage(pid);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                iterator.remove();
-                return;
+        PageId pid = evictionPolicy.chooseVictim(new EvictionPolicy.Filter() {
+            public boolean canEvict(PageId pid) {
+                return map.get(pid).isDirty() == null && !recLsns.containsKey(pid)
+                        && !pins.containsKey(pid);
             }
+        });
+        if (pid == null) {
+            // a page that was logged at commit but is not written yet
+            pid = evictionPolicy.chooseVictim(new EvictionPolicy.Filter() {
+                public boolean canEvict(PageId pid) {
+                    return map.get(pid).isDirty() == null && !pins.containsKey(pid);
+                }
+            });
+        }
+        if (pid == null) {
+            pid = evictionPolicy.chooseVictim(new EvictionPolicy.Filter() {
+                public boolean canEvict(PageId pid) {
+                    return !pins.containsKey(pid);
+                }
+            });
+        }
+        if (pid == null) {
+            throw new DbException("No page to evict");
+        }
+        try {
+            flushPage(pid);
+        } catch (IOException e) {
+            throw new DbException("could not write back page " + pid + ": " + e.getMessage());
         }
-        throw new DbException("No clean page while evicting");
+        Page page = map.remove(pid);
+        ringPages.remove(pid);
+        evictionPolicy.pageRemoved(pid);
+        releaseFrame(page);
     }
 
 }
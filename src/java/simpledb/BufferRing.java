@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A BufferRing is a small, private set of buffer pool frames used by one
+ * large sequential scan. Pages the scan brings into the BufferPool are
+ * remembered in the ring; once the ring is full, the oldest of them is
+ * dropped from the pool to make room for the next one, so the scan recycles
+ * its own frames instead of evicting the working set of other transactions.
+ * <p>
+ * A ring page that is dirty, or that another caller hits in the meantime,
+ * is left in the pool and handed over to the normal eviction policy.
+ *
+ * @see BufferPool#newScanRing(int)
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+ */
+public class BufferRing {
+
+    private final int size;
+    private final ArrayDeque<PageId> pages;
+
+    /**
+     * @param size the number of frames in the ring
+     */
+    BufferRing(int size) {
+        this.size = size;
+        this.pages = new ArrayDeque<>(size);
+    }
+
+    /** @return the number of frames in the ring */
+    public int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return pages.size() >= size;
+    }
+
+    void add(PageId pid) {
+        pages.addLast(pid);
+    }
+
+    /** Removes and returns the oldest page of the ring. */
+    PageId poll() {
+        return pages.pollFirst();
+    }
+}
@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) eviction. Cached pages sit on a circular list of
+ * frames, each with a reference bit that is set on access. The clock hand
+ * sweeps the frames, clearing set bits, and stops at the first evictable
+ * page whose bit is already clear.
+ * <p>
+ * Setting a reference bit takes no lock; only adding, removing and sweeping
+ * frames synchronize on the policy.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private static class Frame {
+        final PageId pid;
+        volatile boolean referenced = true;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final ArrayList<Frame> frames = new ArrayList<>();
+    private final Map<PageId, Frame> framesByPage = new ConcurrentHashMap<>();
+    private final Map<PageId, Integer> slots = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int hand = 0;
+
+    public synchronized void pageAdded(PageId pid) {
+        Frame frame = framesByPage.get(pid);
+        if (frame != null) {
+            frame.referenced = true;
+            return;
+        }
+        frame = new Frame(pid);
+        int slot;
+        if (freeSlots.isEmpty()) {
+            slot = frames.size();
+            frames.add(frame);
+        } else {
+            slot = freeSlots.pop();
+            frames.set(slot, frame);
+        }
+        slots.put(pid, slot);
+        framesByPage.put(pid, frame);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Frame frame = framesByPage.get(pid);
+        if (frame != null) frame.referenced = true;
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer slot = slots.remove(pid);
+        if (slot == null) return;
+        framesByPage.remove(pid);
+        frames.set(slot, null);
+        freeSlots.push(slot);
+    }
+
+    public synchronized PageId chooseVictim(Filter filter) {
+        int n = frames.size();
+        // two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * n; i++) {
+            if (hand >= n) hand = 0;
+            Frame frame = frames.get(hand++);
+            if (frame == null || !filter.canEvict(frame.pid)) continue;
+            if (frame.referenced) {
+                frame.referenced = false;
+                continue;
+            }
+            return frame.pid;
+        }
+        return null;
+    }
+}
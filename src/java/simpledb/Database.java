@@ -55,11 +55,32 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that uses the specified eviction policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy policy) {
+        return resetBufferPool(new BufferPool(pages, policy));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that uses the specified eviction policy and, if offHeap is set, keeps
+     * heap file pages in direct memory, and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy policy, boolean offHeap) {
+        return resetBufferPool(new BufferPool(pages, policy, offHeap));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool bufferPool) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
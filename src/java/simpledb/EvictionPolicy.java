@@ -0,0 +1,62 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which cached page the BufferPool should give up
+ * when it runs out of frames. The BufferPool tells the policy about every
+ * page that enters the cache, every hit on a cached page, and every page
+ * that leaves the cache; the policy uses this history to pick a victim.
+ * <p>
+ * Implementations must be safe for concurrent use by several threads.
+ * {@link #pageAccessed(PageId)} is called on the BufferPool's hit path
+ * without any pool-wide lock held, so it should not block; it may also be
+ * called for a page that was removed concurrently, and must then do nothing.
+ * The other methods are called while the BufferPool holds its own monitor.
+ *
+ * @see BufferPool#BufferPool(int, EvictionPolicy)
+ * @see LRUEvictionPolicy
+ * @see ClockEvictionPolicy
+ * @see LRUKEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Decides whether a candidate page may actually be evicted (e.g. it is
+     * not dirty).
+     */
+    public interface Filter {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Called when a page is placed in the buffer pool.
+     *
+     * @param pid the id of the page that was added
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Called on every buffer pool hit for a cached page.
+     *
+     * @param pid the id of the page that was accessed
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool for any reason (eviction,
+     * discard, ...).
+     *
+     * @param pid the id of the page that was removed
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Picks the page that should be evicted next. The victim is not removed
+     * from the policy; the caller reports that through
+     * {@link #pageRemoved(PageId)} once the page has left the pool.
+     *
+     * @param filter decides which of the cached pages may be evicted
+     * @return the id of the page to evict, or null if no cached page passes
+     *   the filter
+     */
+    public PageId chooseVictim(Filter filter);
+}
@@ -9,7 +9,6 @@ public class Filter extends Operator {
 
     private Predicate p;
     private OpIterator child;
-    private OpIterator[] children;
 
     private static final long serialVersionUID = 1L;
 
@@ -78,13 +77,13 @@ public class Filter extends Operator {
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
-        return children;
+        return new OpIterator[]{child};
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
-        this.children = children;
+        this.child = children[0];
     }
 
 }
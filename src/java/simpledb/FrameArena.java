@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A FrameArena is one preallocated block of direct (off-heap) memory, cut
+ * into page-sized frames for the BufferPool. A page read into a frame is a
+ * view over it rather than a copy on the Java heap, so a large pool adds
+ * little to the heap the garbage collector has to trace.
+ * <p>
+ * A scan may go on reading a page, and the tuples it handed out may go on
+ * decoding fields from it, after the page left the pool. The BufferPool
+ * therefore frees a frame with {@link PageBuffer#release()}, which first
+ * moves the page's bytes to the heap for those late readers. A frame whose
+ * buffer is dropped without being released, say with the whole pool, comes
+ * back once the garbage collector finds nothing refers to the buffer any
+ * more. If the arena runs out, {@link #allocate()} returns null and the
+ * caller keeps the page on the heap instead.
+ *
+ * @see BufferPool#BufferPool(int, EvictionPolicy, boolean)
+ */
+public class FrameArena {
+
+    /** Tracks a handed out frame, and returns it once its buffer is unreachable. */
+    private static class FrameRef extends PhantomReference<PageBuffer> {
+        final int index;
+
+        FrameRef(PageBuffer frame, int index, ReferenceQueue<PageBuffer> queue) {
+            super(frame, queue);
+            this.index = index;
+        }
+    }
+
+    private final ByteBuffer arena;
+    private final int frameSize;
+    private final int numFrames;
+    private final ArrayDeque<Integer> free;
+    private final ReferenceQueue<PageBuffer> unreachable = new ReferenceQueue<>();
+    // the reference to each frame handed out, by index; this also keeps
+    // the references reachable until they are enqueued
+    private final FrameRef[] live;
+
+    /**
+     * Allocates an arena of numFrames frames of frameSize bytes each.
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        this.numFrames = numFrames;
+        this.frameSize = frameSize;
+        this.arena = ByteBuffer.allocateDirect(numFrames * frameSize);
+        this.free = new ArrayDeque<>(numFrames);
+        this.live = new FrameRef[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            free.add(i);
+        }
+    }
+
+    /** @return the size of a frame in bytes */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /** @return the number of frames in the arena */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /** @return the number of frames that can be handed out right now */
+    public synchronized int getFreeFrames() {
+        reclaim();
+        return free.size();
+    }
+
+    /**
+     * Hands out a free frame, as a buffer of exactly one frame.
+     *
+     * @return the frame, or null if every frame is still in use
+     */
+    synchronized PageBuffer allocate() {
+        reclaim();
+        Integer index = free.poll();
+        if (index == null) return null;
+        ByteBuffer dup = arena.duplicate();
+        dup.position(index * frameSize);
+        dup.limit((index + 1) * frameSize);
+        PageBuffer frame = new PageBuffer(dup.slice(), this, index);
+        live[index] = new FrameRef(frame, index, unreachable);
+        return frame;
+    }
+
+    /** Takes back a frame whose buffer was released. */
+    synchronized void free(int index) {
+        FrameRef ref = live[index];
+        if (ref == null) return;
+        // a cleared reference is never enqueued
+        ref.clear();
+        live[index] = null;
+        free.add(index);
+    }
+
+    /** Takes back the frames whose buffers the collector found unreachable. */
+    private void reclaim() {
+        FrameRef ref;
+        while ((ref = (FrameRef) unreachable.poll()) != null) {
+            if (live[ref.index] == ref) {
+                live[ref.index] = null;
+                free.add(ref.index);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A FreeSpaceMap remembers which pages of a HeapFile have an empty slot, so
+ * that an insert can go straight to such a page instead of locking every
+ * page of the file on the way.
+ * <p>
+ * The map is not stored on disk. Its owner fills it in from the slot
+ * headers of the pages on disk the first time it is needed, and keeps it up
+ * to date as tuples are inserted and deleted. It is only a hint: a page the
+ * map says has room may have been filled by a transaction whose changes are
+ * not on disk yet, so the caller checks the page itself once it holds the
+ * lock, and clears the page in the map if it is full. A page is marked as
+ * having room again when a tuple is deleted from it, or when the BufferPool
+ * drops its copy, as on an abort.
+ *
+ * @see HeapFile#insertTuple(TransactionId, Tuple)
+ */
+public class FreeSpaceMap {
+
+    private final BitSet free = new BitSet();
+    // number of pages the map knows about
+    private int numPages = 0;
+
+    /** @return the number of pages the map knows about */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Records whether the given page has an empty slot, growing the map if
+     * the page is past its end.
+     */
+    public synchronized void setFree(int pgNo, boolean hasRoom) {
+        free.set(pgNo, hasRoom);
+        if (pgNo >= numPages) numPages = pgNo + 1;
+    }
+
+    /**
+     * @return the number of the first page at or after from that has an
+     *   empty slot, or -1 if there is none
+     */
+    public synchronized int nextFreePage(int from) {
+        return free.nextSetBit(from);
+    }
+}
@@ -1,9 +1,21 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join by building a hash
+ * table on its left child and probing it with its right child.
+ * <p>
+ * When the left child has more tuples than the memory budget, both children
+ * are partitioned by the hash of their join fields into {@link SpillFile}s,
+ * so that matching tuples land in partitions of the same number, and the
+ * partitions are then joined pair by pair (Grace hash join). The first
+ * partition of the left child stays in memory while it fits, and the right
+ * child's tuples of that partition are joined as they are read (hybrid hash
+ * join). Each input is thus read once and its spilled part written and read
+ * back once, rather than the right child being rescanned for every
+ * memory-sized chunk of the left.
  */
 public class HashEquiJoin extends Operator {
 
@@ -51,31 +63,171 @@ public class HashEquiJoin extends Operator {
     }
     
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+
+    /** Default number of build tuples kept in memory. */
     public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    /** Number of partitions the inputs are split into once the build side overflows. */
+    public final static int NUM_PARTITIONS = 16;
+
+    private int memoryTuples = MAP_SIZE;
+
+    // tuples in map
+    private int mapSize = 0;
+    // partitions of the two inputs once the build side spilled, else null
+    private SpillFile[] buildParts = null;
+    private SpillFile[] probeParts = null;
+    // whether partition 0 of the build side is still in memory (hybrid)
+    private boolean hybrid = false;
+    private boolean spilled = false;
+    // after child2 is used up: the partition being joined, the rest of its
+    // build side, and its probe side
+    private int partition = -1;
+    transient private Iterator<Tuple> buildIt = null;
+    transient private Iterator<Tuple> probeIt = null;
+
+    /**
+     * Sets the number of build tuples the join keeps in memory. A build
+     * side larger than this is partitioned to disk.
+     */
+    public void setMemoryBudget(int tuples) {
+        if (tuples < 1)
+            throw new IllegalArgumentException("a join needs room for a build tuple");
+        this.memoryTuples = tuples;
+    }
+
+    /** @return whether the last open() had to partition its inputs to disk */
+    public boolean spilled() {
+        return spilled;
+    }
+
+    private static int partitionOf(Field key) {
+        // mixed, so that partitions and the buckets of map use different bits
+        return Math.floorMod(key.hashCode() * 0x9E3779B9 >>> 8, NUM_PARTITIONS);
+    }
+
+    private void addToMap(Tuple t, Field key) {
+        ArrayList<Tuple> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(key, list);
+        }
+        list.add(t);
+        mapSize++;
+    }
+
+    /**
+     * Reads the build side, child1. If it fits in memory it is all in map.
+     * Otherwise it is split into NUM_PARTITIONS spill files by the hash of
+     * the join field, except that partition 0 stays in map as long as it
+     * fits (hybrid hash join).
+     */
+    private void build() throws DbException, TransactionAbortedException {
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+        mapSize = 0;
+        spilled = false;
+        try {
+            while (child1.hasNext()) {
+                Tuple t = child1.next();
+                Field key = t.getField(pred.getField1());
+                if (buildParts == null) {
+                    addToMap(t, key);
+                    if (mapSize > memoryTuples) spillBuild();
+                } else {
+                    int p = partitionOf(key);
+                    if (p == 0 && hybrid) {
+                        addToMap(t, key);
+                        if (mapSize > memoryTuples) spillPartitionZero();
+                    } else {
+                        buildParts[p].add(t);
+                    }
+                }
+            }
+            if (buildParts != null) {
+                probeParts = new SpillFile[NUM_PARTITIONS];
+                for (int p = 0; p < NUM_PARTITIONS; p++) {
+                    buildParts[p].finish();
+                    probeParts[p] = new SpillFile(child2.getTupleDesc());
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not spill hash join input: " + e.getMessage());
+        }
+    }
+
+    /** Moves every tuple of map outside partition 0 to its spill file. */
+    private void spillBuild() throws IOException {
+        buildParts = new SpillFile[NUM_PARTITIONS];
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            buildParts[p] = new SpillFile(child1.getTupleDesc());
+        }
+        hybrid = true;
+        spilled = true;
+        Iterator<Map.Entry<Object, ArrayList<Tuple>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, ArrayList<Tuple>> e = it.next();
+            int p = partitionOf((Field) e.getKey());
+            if (p == 0) continue;
+            for (Tuple t : e.getValue()) {
+                buildParts[p].add(t);
+            }
+            mapSize -= e.getValue().size();
+            it.remove();
+        }
+        if (mapSize > memoryTuples) spillPartitionZero();
+    }
+
+    /** Moves partition 0 to its spill file too, when it alone overflows. */
+    private void spillPartitionZero() throws IOException {
+        for (ArrayList<Tuple> list : map.values()) {
+            for (Tuple t : list) {
+                buildParts[0].add(t);
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
         }
-        return cnt > 0;
+        map.clear();
+        mapSize = 0;
+        hybrid = false;
+    }
 
+    /**
+     * Loads up to memoryTuples tuples of the current build partition into
+     * map, and starts the partition's probe side over.
+     *
+     * @return false if the partition has no build tuples left
+     */
+    private boolean loadChunk() {
+        map.clear();
+        mapSize = 0;
+        while (buildIt.hasNext() && mapSize < memoryTuples) {
+            Tuple t = buildIt.next();
+            addToMap(t, t.getField(pred.getField1()));
+        }
+        if (mapSize == 0) return false;
+        probeIt = probeParts[partition].iterator();
+        return true;
+    }
+
+    /** Deletes the spill files, if any. */
+    private void dropPartitions() {
+        for (SpillFile[] parts : new SpillFile[][]{buildParts, probeParts}) {
+            if (parts == null) continue;
+            for (SpillFile f : parts) {
+                if (f != null) f.delete();
+            }
+        }
+        buildParts = null;
+        probeParts = null;
+        hybrid = false;
+        partition = -1;
+        buildIt = null;
+        probeIt = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        build();
         super.open();
     }
 
@@ -87,11 +239,15 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        dropPartitions();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        listIt = null;
+        dropPartitions();
+        build();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -131,32 +287,64 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
+            Tuple probe = nextProbe();
+            if (probe == null) return null;
+            t2 = probe;
 
             // if match, create a combined tuple and fill it with the values
             // from both tuples
             ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
+            if (l != null) listIt = l.iterator();
         }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    /**
+     * Returns the next probe tuple to look up in map. Tuples of child2 are
+     * looked up directly when the build side is all in memory, or when they
+     * fall in partition 0 while it is; the others are written to their
+     * partition. Then each spilled partition is joined in turn, in chunks
+     * if its build side is still too large for memory.
+     *
+     * @return the next tuple to probe with, or null when the join is done
+     */
+    private Tuple nextProbe() throws TransactionAbortedException, DbException {
+        if (partition < 0) {
+            while (child2.hasNext()) {
+                Tuple t = child2.next();
+                if (buildParts == null) return t;
+                Field key = t.getField(pred.getField2());
+                int p = partitionOf(key);
+                if (p == 0 && hybrid) return t;
+                try {
+                    probeParts[p].add(t);
+                } catch (IOException e) {
+                    throw new DbException("could not spill hash join input: " + e.getMessage());
+                }
+            }
+            if (buildParts == null) return null;
+            try {
+                for (SpillFile f : probeParts) {
+                    f.finish();
+                }
+            } catch (IOException e) {
+                throw new DbException("could not spill hash join input: " + e.getMessage());
+            }
+            partition = hybrid ? 0 : -1;
+            probeIt = null;
+        }
+        while (true) {
+            if (probeIt != null && probeIt.hasNext()) return probeIt.next();
+            if (probeIt != null && loadChunk()) continue;
+            // next partition
+            if (++partition >= NUM_PARTITIONS) return null;
+            buildIt = buildParts[partition].iterator();
+            if (!loadChunk()) probeIt = null;
         }
-
-        return null;
     }
 
     @Override
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -18,6 +20,19 @@ public class HeapFile implements DbFile {
     private File f;
     private TupleDesc td;
 
+    /**
+     * Channel over the backing file, opened on first use and kept for the
+     * lifetime of this HeapFile, or until an interrupt closes it. Only
+     * positional reads and writes are issued against it, so it can be
+     * shared by concurrent readers without locking. The one exception, the
+     * gathering write in writePages(), sets the channel's position under
+     * this file's monitor.
+     */
+    private volatile FileChannel channel;
+
+    /** Pages with an empty slot; built on the first insert or delete, null before. */
+    private volatile FreeSpaceMap freeSpace;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -67,46 +82,144 @@ public class HeapFile implements DbFile {
         //throw new UnsupportedOperationException("implement this");
     }
 
+    /**
+     * Returns the channel backing this file, opening it if necessary. A
+     * thread interrupted during I/O on the channel closes it for every
+     * thread, so a closed channel is replaced by a fresh one.
+     */
+    private FileChannel getChannel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null || !ch.isOpen()) {
+                    ch = new RandomAccessFile(f, "rw").getChannel();
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Closes the channel backing this file. The channel is reopened if the
+     * file is accessed again.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        int pageSize = BufferPool.getPageSize();
-        FileInputStream fileInputStream = null;
-        byte b[] = new byte[pageSize];
+        byte b[] = new byte[BufferPool.getPageSize()];
+        read(pid, ByteBuffer.wrap(b));
         try {
-            fileInputStream = new FileInputStream(f);
-            for (int i = 0; i <= pid.getPageNumber(); i ++) {
-                fileInputStream.read(b, 0, pageSize);
-            }
+            return new HeapPage((HeapPageId) pid, b);
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                fileInputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads a page into the given page-sized buffer, typically a direct
+     * frame from a {@link FrameArena}, and returns a page that is a view
+     * over the buffer rather than a copy of it.
+     */
+    Page readPage(PageId pid, PageBuffer frame) {
+        read(pid, frame.view());
+        return new HeapPage((HeapPageId) pid, frame);
+    }
+
+    /**
+     * Fills the buffer with the contents of the given page.
+     */
+    private void read(PageId pid, ByteBuffer buf) {
+        int pageSize = BufferPool.getPageSize();
+        if (pid.getPageNumber() < 0 || pid.getPageNumber() >= numPages()) {
+            throw new IllegalArgumentException("page " + pid.getPageNumber() + " does not exist in this file");
         }
-        Page page = null;
         try {
-            page = new HeapPage((HeapPageId) pid, b);
+            long offset = (long) pid.getPageNumber() * pageSize;
+            while (buf.hasRemaining()) {
+                if (getChannel().read(buf, offset + buf.position()) < 0) {
+                    throw new IllegalArgumentException("Read past end of table");
+                }
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new RuntimeException(e);
         }
-        return page;
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        byte[] pageData = page.getPageData();
-        RandomAccessFile raf = new RandomAccessFile(f, "rw");
-        synchronized (f) {
-            raf.seek(page.getId().getPageNumber() * BufferPool.getPageSize());
-            raf.write(pageData, 0, BufferPool.getPageSize());
-            raf.close();
+        write(page.getId().getPageNumber(), page.getPageData());
+    }
+
+    /**
+     * Writes the given pages, issuing one gathering write for each run of
+     * consecutive page numbers rather than one write per page.
+     *
+     * @param pages pages of this file, in any order
+     * @return the number of writes issued
+     */
+    public int writePages(List<Page> pages) throws IOException {
+        List<Page> sorted = new ArrayList<Page>(pages);
+        Collections.sort(sorted, new Comparator<Page>() {
+            public int compare(Page a, Page b) {
+                return Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+            }
+        });
+        int pageSize = BufferPool.getPageSize();
+        int writes = 0;
+        int i = 0;
+        while (i < sorted.size()) {
+            int first = sorted.get(i).getId().getPageNumber();
+            int j = i + 1;
+            while (j < sorted.size() && sorted.get(j).getId().getPageNumber() == first + (j - i)) j++;
+            ByteBuffer[] bufs = new ByteBuffer[j - i];
+            for (int k = i; k < j; k++) {
+                bufs[k - i] = ByteBuffer.wrap(sorted.get(k).getPageData(), 0, pageSize);
+            }
+            synchronized (this) {
+                FileChannel ch = getChannel();
+                ch.position((long) first * pageSize);
+                while (bufs[bufs.length - 1].hasRemaining()) {
+                    ch.write(bufs);
+                }
+            }
+            writes++;
+            i = j;
         }
+        return writes;
+    }
+
+    /**
+     * Writes one page worth of data at the offset of the given page number.
+     */
+    private void write(int pgNo, byte[] pageData) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer buf = ByteBuffer.wrap(pageData, 0, pageSize);
+        long offset = (long) pgNo * pageSize;
+        while (buf.hasRemaining()) {
+            getChannel().write(buf, offset + buf.position());
+        }
+    }
+
+    /**
+     * Appends an empty page to the end of this file.
+     *
+     * @return the page number of the new page
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        int pgNo = numPages();
+        write(pgNo, HeapPage.createEmptyPageData());
+        return pgNo;
     }
 
     /**
@@ -117,32 +230,69 @@ public class HeapFile implements DbFile {
         return (int) (f.length()/BufferPool.getPageSize());
     }
 
+    /**
+     * Returns the free-space map of this file, first bringing it up to date
+     * with any pages it does not know about yet. Those are looked up in the
+     * slot headers on disk, without reading whole pages or taking locks.
+     */
+    private FreeSpaceMap freeSpace() throws IOException {
+        FreeSpaceMap fsm = freeSpace;
+        if (fsm == null) {
+            synchronized (this) {
+                fsm = freeSpace;
+                if (fsm == null) {
+                    fsm = new FreeSpaceMap();
+                    freeSpace = fsm;
+                }
+            }
+        }
+        int numPages = numPages();
+        if (fsm.numPages() < numPages) {
+            synchronized (fsm) {
+                int slots = HeapPage.getNumTuples(td);
+                byte[] header = new byte[HeapPage.getHeaderSize(td)];
+                for (int pgNo = fsm.numPages(); pgNo < numPages; pgNo++) {
+                    ByteBuffer buf = ByteBuffer.wrap(header);
+                    long offset = (long) pgNo * BufferPool.getPageSize();
+                    while (buf.hasRemaining()) {
+                        if (getChannel().read(buf, offset + buf.position()) < 0) break;
+                    }
+                    int used = 0;
+                    for (byte b : header) used += Integer.bitCount(b & 0xff);
+                    fsm.setFree(pgNo, used < slots);
+                }
+            }
+        }
+        return fsm;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        for (int i = 0; i < numPages(); i ++) {
+        BufferPool bufferPool = Database.getBufferPool();
+        FreeSpaceMap fsm = freeSpace();
+        for (int i = fsm.nextFreePage(0); i >= 0; i = fsm.nextFreePage(i + 1)) {
             HeapPageId heapPageId = new HeapPageId(getId(), i);
-            Page page = Database.getBufferPool().getPage(tid, heapPageId,
+            boolean locked = bufferPool.holdsLock(tid, heapPageId);
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, heapPageId,
                     Permissions.READ_WRITE);
-            if (((HeapPage)page).getNumEmptySlots() == 0) {
-                Database.getBufferPool().releasePage(tid, heapPageId);
+            if (page.getNumEmptySlots() == 0) {
+                fsm.setFree(i, false);
+                // the page was not touched, so the lock can go unless it was held already
+                if (!locked) bufferPool.releasePage(tid, heapPageId);
                 continue;
             }
-            ((HeapPage)page).insertTuple(t);
-//            ((HeapPage)page).markDirty(true, tid);
+            page.insertTuple(t);
+            fsm.setFree(i, page.getNumEmptySlots() > 0);
             return new ArrayList<Page>(Arrays.asList(page));
         }
-        byte[] b = new byte[BufferPool.getPageSize()];
-        FileOutputStream fileOutputStream = new FileOutputStream(f, true);
-        fileOutputStream.write(b);
-        fileOutputStream.close();
-        HeapPageId heapPageId = new HeapPageId(getId(), numPages() - 1);
-        Page page = Database.getBufferPool().getPage(tid, heapPageId,
+        HeapPageId heapPageId = new HeapPageId(getId(), appendEmptyPage());
+        HeapPage page = (HeapPage) bufferPool.getPage(tid, heapPageId,
                 Permissions.READ_WRITE);
-        ((HeapPage)page).insertTuple(t);
-//        ((HeapPage)page).markDirty(true, tid);
+        page.insertTuple(t);
+        fsm.setFree(heapPageId.getPageNumber(), page.getNumEmptySlots() > 0);
         return new ArrayList<Page>(Arrays.asList(page));
     }
 
@@ -154,9 +304,26 @@ public class HeapFile implements DbFile {
         Page page = Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(),
                 Permissions.READ_WRITE);
         ((HeapPage)page).deleteTuple(t);
+        // the map is built now if need be: built later, from the headers on
+        // disk, it would miss this delete until the page is written
+        try {
+            freeSpace().setFree(page.getId().getPageNumber(), true);
+        } catch (IOException e) {
+            throw new DbException("could not read the free space of " + f + ": " + e.getMessage());
+        }
         return new ArrayList<Page>(Arrays.asList(page));
     }
 
+    /**
+     * Marks a page as possibly having an empty slot again, because the
+     * BufferPool dropped its copy, as on an abort, and the next one is read
+     * from disk. An insert checks the page before relying on that.
+     */
+    void pageDiscarded(int pgNo) {
+        FreeSpaceMap fsm = freeSpace;
+        if (fsm != null && pgNo < fsm.numPages()) fsm.setFree(pgNo, true);
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
@@ -166,10 +333,13 @@ public class HeapFile implements DbFile {
             private TransactionId transactionId = tid;
             private int pageNum = -1;
             private Iterator<Tuple> iterator = null;
+            // private frames for scans of large files, null otherwise
+            private BufferRing ring = null;
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 open = true;
+                ring = Database.getBufferPool().newScanRing(numPages());
             }
 
             @Override
@@ -182,7 +352,7 @@ public class HeapFile implements DbFile {
                             pageNum ++;
                         }
                         PageId pid = new HeapPageId(getId(), pageNum);
-                        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring);
                         iterator = page.iterator();
                         if (iterator.hasNext()) break;
                     }
@@ -206,6 +376,7 @@ public class HeapFile implements DbFile {
             public void close() {
                 pageNum = -1;
                 iterator = null;
+                ring = null;
                 open = false;
             }
         };
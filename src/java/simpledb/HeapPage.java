@@ -2,10 +2,20 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A page keeps the bytes it was read from and decodes tuples lazily: a
+ * tuple is made only when its slot is read, and its fields only when they
+ * are asked for (see {@link Tuple#getField}). The bytes may be a heap array
+ * or a direct frame of the BufferPool's {@link FrameArena}. They are never
+ * written to, so they also serve as the before image of a page loaded from
+ * disk.
+ * Tuples inserted into the page are kept as objects until it is
+ * serialized again.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,14 +26,18 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    // tuples inserted since the page was read; other used slots are in data
     final Tuple tuples[];
     final int numSlots;
+    // the bytes the page was read from
+    private final PageBuffer data;
 
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
     private TransactionId transactionId;
     private boolean dirty;
+    private volatile long lsn = -1;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -37,33 +51,47 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps a reference to data rather than a copy, so the caller
+     * must not change it afterwards.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, new PageBuffer(ByteBuffer.wrap(data)));
+    }
+
+    /**
+     * Create a HeapPage that is a view over page-sized bytes, such as a
+     * direct frame of a {@link FrameArena}. As with the byte array
+     * constructor, the bytes must not change while the page or any tuple
+     * read from it is in use.
+     */
+    HeapPage(HeapPageId id, PageBuffer data) {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()));
+    }
+
+    /**
+     * Create a HeapPage of tuples of the given type, for pages of files that
+     * are not in the catalog, such as a {@link SpillFile}.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data, TupleDesc td) {
+        this(id, new PageBuffer(data), td);
+    }
+
+    private HeapPage(HeapPageId id, PageBuffer data, TupleDesc td) {
         this.pid = id;
         this.dirty = false;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data;
 
-        // allocate and read the header slots of this page
+        // the header is copied, since inserts and deletes change it
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+            header[i] = data.get(i);
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        // oldData stays null until setBeforeImage: the before image is data
     }
 
     /** Retrieve the number of tuples on this page.
@@ -71,19 +99,29 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-        return (BufferPool.getPageSize()*8) / (td.getSize() * 8 + 1);
+        return getNumTuples(td);
        // return (int) Math.floor((BufferPool.getPageSize()*8) / (td.getSize() * 8 + 1));
     }
 
+    /** @return the number of tuples of the given type that fit on a page */
+    static int getNumTuples(TupleDesc td) {
+        return (BufferPool.getPageSize()*8) / (td.getSize() * 8 + 1);
+    }
+
     /**
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
         // some code goes here
+        return getHeaderSize(td);
+    }
+
+    /** @return the number of header bytes of a page of tuples of the given type */
+    static int getHeaderSize(TupleDesc td) {
         //return (int) Math.ceil(getNumTuples()/8);
-        int nheaderbytes = getNumTuples() / 8;
-        if (nheaderbytes * 8 < getNumTuples())
+        int nheaderbytes = getNumTuples(td) / 8;
+        if (nheaderbytes * 8 < getNumTuples(td))
             nheaderbytes++;  //ceiling
         return nheaderbytes;
     }
@@ -97,6 +135,7 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) return new HeapPage(pid, data);
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -107,12 +146,23 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        // getPageData returns a new array, so there is no need to copy it
+        byte[] newData = getPageData();
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = newData;
         }
     }
 
+    /**
+     * Gives the frame the page was read into, if any, back to its arena.
+     * The page, its before image and its tuples go on reading a heap copy
+     * of the bytes.
+     */
+    void releaseFrame() {
+        data.release();
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -123,39 +173,23 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in a used slot, decoding it from the page bytes if
+     * it was not inserted since the page was read.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple getTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new Tuple(td, data, slotOffset(slotId));
+            t.setRecordId(new RecordId(pid, slotId));
         }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
         return t;
     }
 
+    /** @return the offset of a slot in the page bytes */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -183,6 +217,7 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
+        byte[] raw = null;
         for (int i=0; i<tuples.length; i++) {
 
             // empty slot
@@ -198,6 +233,18 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // slot unchanged since the page was read: copy its bytes
+            if (tuples[i] == null) {
+                if (raw == null) raw = new byte[td.getSize()];
+                data.get(slotOffset(i), raw);
+                try {
+                    dos.write(raw, 0, raw.length);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -252,24 +299,13 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (t.getRecordId() == null) throw new DbException("tuple is not on this page");
-        for (int i = 0; i < numSlots; i ++) {
-//            if (!isSlotUsed(i)) continue;
-            if (tuples[i] == null) continue;
-            boolean flag = false;
-//            for (int j = 0; j < t.getTupleDesc().numFields(); i ++) {
-//                if (t.getField(j).equals(tuples[i].getField(j))) flag = false;
-//            }
-            if (t.getRecordId().equals(tuples[i].getRecordId())) flag = true;
-            if (flag) {
-                if (!isSlotUsed(i)) throw new DbException("tuple slot is\n" +
-                        "     *         already empty");
-//                t.setRecordId(null);
-                markSlotUsed(i, false);
-                return;
-            }
-        }
-        throw new DbException("tuple is not on this page");
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) throw new DbException("tuple is not on this page");
+        int i = rid.getTupleNumber();
+        if (i < 0 || i >= numSlots) throw new DbException("tuple is not on this page");
+        if (!isSlotUsed(i)) throw new DbException("tuple slot is already empty");
+        markSlotUsed(i, false);
+        tuples[i] = null;
     }
 
     /**
@@ -317,6 +353,14 @@ public class HeapPage implements Page {
         return null;
     }
 
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -373,7 +417,7 @@ public class HeapPage implements Page {
                 for (int i = num; i < tuples.length; i ++) {
                     if (isSlotUsed(i)) {
                         num = i + 1;
-                        return tuples[i];
+                        return getTuple(i);
                     }
                 }
                 return null;
@@ -4,6 +4,11 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Each group keeps running values in primitive slots rather than its
+ * tuples: a count, a sum (AVG divides it by the count at the end), and a
+ * minimum and maximum. Memory thus grows with the number of groups, not the
+ * number of tuples merged.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -13,8 +18,12 @@ public class IntegerAggregator implements Aggregator {
     private Type gbfieldtype;
     private int afield;
     private Op what;
-    private Map<Field, List<Tuple>> map;
-    private List<Tuple> list;
+    // group value (null without grouping) to the index of its slots
+    private Map<Field, Integer> map;
+    private int[] counts = new int[16];
+    private long[] sums = new long[16];
+    private int[] mins = new int[16];
+    private int[] maxs = new int[16];
 
     /**
      * Aggregate constructor
@@ -38,7 +47,6 @@ public class IntegerAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.what = what;
         map = new HashMap<>();
-        list = new ArrayList<>();
     }
 
     /**
@@ -50,17 +58,58 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        if (gbfield != Aggregator.NO_GROUPING) {
-            if (!map.containsKey(tup.getField(gbfield))) {
-                map.put(tup.getField(gbfield), new ArrayList<>());
-            }
-            map.get(tup.getField(gbfield)).add(tup);
+        Field group = gbfield != Aggregator.NO_GROUPING ? tup.getField(gbfield) : null;
+        Integer slot = map.get(group);
+        if (slot == null) {
+            slot = map.size();
+            if (slot == counts.length) grow();
+            map.put(group, slot);
+        }
+        int v = ((IntField) tup.getField(afield)).getValue();
+        if (counts[slot] == 0) {
+            mins[slot] = v;
+            maxs[slot] = v;
         } else {
-            if (!map.containsKey(null)) {
-                map.put(null, new ArrayList<>());
-            }
-            map.get(null).add(tup);
+            mins[slot] = Math.min(mins[slot], v);
+            maxs[slot] = Math.max(maxs[slot], v);
         }
+        counts[slot]++;
+        sums[slot] += v;
+    }
+
+    private void grow() {
+        int n = counts.length * 2;
+        counts = Arrays.copyOf(counts, n);
+        sums = Arrays.copyOf(sums, n);
+        mins = Arrays.copyOf(mins, n);
+        maxs = Arrays.copyOf(maxs, n);
+    }
+
+    /** @return the aggregate value of the group in a slot */
+    private int aggregateValue(int slot) {
+        switch (what) {
+        case MIN:
+            return mins[slot];
+        case MAX:
+            return maxs[slot];
+        case SUM:
+            return (int) sums[slot];
+        case AVG:
+            return (int) (sums[slot] / counts[slot]);
+        case COUNT:
+            return counts[slot];
+        default:
+            // SUM_COUNT and SC_AVG are not implemented
+            return 0;
+        }
+    }
+
+    public int numGroups() {
+        return map.size();
+    }
+
+    public boolean hasGroup(Field group) {
+        return map.containsKey(group);
     }
 
     /**
@@ -76,7 +125,7 @@ public class IntegerAggregator implements Aggregator {
         return new OpIterator() {
             private boolean open = false;
             private TupleDesc tupleDesc;
-            private Iterator<Map.Entry<Field, List<Tuple>>> entries;
+            private Iterator<Map.Entry<Field, Integer>> entries;
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
@@ -104,29 +153,12 @@ public class IntegerAggregator implements Aggregator {
             public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
                 if (open == false) throw new IllegalStateException();
                 Tuple tuple = new Tuple(tupleDesc);
-                Map.Entry<Field, List<Tuple>> entry = null;
+                Map.Entry<Field, Integer> entry = null;
                 if (entries.hasNext())
                     entry = entries.next();
                 else
                     throw new NoSuchElementException();
-                List<Tuple> tupleList = entry.getValue();
-                int value = 0, k = -1;
-                for (Tuple tp : tupleList) {
-                    int v = ((IntField) tp.getField(afield)).getValue();
-                    if (what == Op.SUM || what == Op.AVG) {
-                        value += v;
-                    } else if (what == Op.MIN) {
-                        if (k < 0) value = v;
-                        else value = Math.min(value, v);
-                    } else if (what == Op.MAX) {
-                        if (k < 0) value = v;
-                        else value = Math.max(value, v);
-                    } else if (what == Op.COUNT) {
-                        value += 1;
-                    }
-                    k = 0;
-                }
-                if (what == Op.AVG) value = value / tupleList.size();
+                int value = aggregateValue(entry.getValue());
                 if (gbfield != Aggregator.NO_GROUPING) {
                     tuple.setField(0, entry.getKey());
                     tuple.setField(1, new IntField(value));
@@ -14,7 +14,6 @@ public class Join extends Operator {
     private Tuple next2;
     private OpIterator child1;
     private OpIterator child2;
-    private OpIterator[] children;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -146,13 +145,14 @@ public class Join extends Operator {
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
-        return children;
+        return new OpIterator[]{child1, child2};
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
-        this.children = children;
+        this.child1 = children[0];
+        this.child2 = children[1];
     }
 
 }
@@ -0,0 +1,43 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least-recently-used eviction: the victim is the evictable page whose last
+ * access is the oldest.
+ * <p>
+ * Each page carries the value of a logical clock at its last access, so
+ * recording a hit is a single map update instead of a move on a shared
+ * list; finding a victim scans all cached pages.
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+
+    private final AtomicLong time = new AtomicLong();
+    private final ConcurrentHashMap<PageId, Long> lastAccess = new ConcurrentHashMap<>();
+
+    public void pageAdded(PageId pid) {
+        lastAccess.put(pid, time.incrementAndGet());
+    }
+
+    public void pageAccessed(PageId pid) {
+        lastAccess.replace(pid, time.incrementAndGet());
+    }
+
+    public void pageRemoved(PageId pid) {
+        lastAccess.remove(pid);
+    }
+
+    public PageId chooseVictim(Filter filter) {
+        PageId victim = null;
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<PageId, Long> e : lastAccess.entrySet()) {
+            if (e.getValue() < oldest && filter.canEvict(e.getKey())) {
+                victim = e.getKey();
+                oldest = e.getValue();
+            }
+        }
+        return victim;
+    }
+}
@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU-K eviction (O'Neil et al.). For every cached page the policy keeps the
+ * times of its last K accesses, and evicts the page whose K-th most recent
+ * access lies furthest in the past. Pages seen fewer than K times have an
+ * infinite backward K-distance and go first, oldest last access first, so a
+ * page touched once by a scan cannot push out a page that is used over and
+ * over, such as a B+ tree root.
+ * <p>
+ * Each page's history is guarded by its own monitor, so hits on different
+ * pages do not contend.
+ */
+public class LRUKEvictionPolicy implements EvictionPolicy {
+
+    /** Default value of K. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    // logical clock, advanced on every access
+    private final AtomicLong time = new AtomicLong();
+    // the last (up to) K access times of each page, most recent first
+    private final ConcurrentHashMap<PageId, long[]> history = new ConcurrentHashMap<>();
+
+    public LRUKEvictionPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of past accesses to remember per page; must be at
+     *   least 1 (LRU-1 is plain LRU)
+     */
+    public LRUKEvictionPolicy(int k) {
+        if (k < 1) throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+    }
+
+    public void pageAdded(PageId pid) {
+        long[] h = history.get(pid);
+        if (h == null) {
+            history.putIfAbsent(pid, new long[k]);
+            h = history.get(pid);
+        }
+        record(h);
+    }
+
+    public void pageAccessed(PageId pid) {
+        long[] h = history.get(pid);
+        if (h != null) record(h);
+    }
+
+    public void pageRemoved(PageId pid) {
+        history.remove(pid);
+    }
+
+    private void record(long[] h) {
+        synchronized (h) {
+            System.arraycopy(h, 0, h, 1, k - 1);
+            h[0] = time.incrementAndGet();
+        }
+    }
+
+    public PageId chooseVictim(Filter filter) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE, victimLast = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> e : history.entrySet()) {
+            long[] h = e.getValue();
+            long kth, last;
+            synchronized (h) {
+                // 0 means "fewer than K accesses", i.e. infinite K-distance
+                kth = h[k - 1];
+                last = h[0];
+            }
+            if (kth > victimKth || (kth == victimKth && last >= victimLast)) continue;
+            if (!filter.canEvict(e.getKey())) continue;
+            victim = e.getKey();
+            victimKth = kth;
+            victimLast = last;
+        }
+        return victim;
+    }
+}
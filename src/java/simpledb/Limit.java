@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that implements a relational LIMIT without an ORDER
+ * BY: it returns the first n tuples of its child, and stops reading the
+ * child after them. An ORDER BY with a LIMIT is a {@link TopN}.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private int limit;
+    private int returned = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            The largest number of tuples to return
+     * @param child
+     *            The child operator
+     */
+    public Limit(int limit, OpIterator child) {
+        this.limit = limit;
+        this.child = child;
+    }
+
+    /** @return the largest number of tuples returned */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child.open();
+        returned = 0;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        returned = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns tuples from the child
+     * operator until limit of them have been returned.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned < limit && child.hasNext()) {
+            returned++;
+            return child.next();
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -1,12 +1,50 @@
 package simpledb;
 
-import com.sun.net.ssl.TrustManagerFactorySpi;
-
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * LockManager keeps the locks of all transactions, on two levels: tables
+ * and pages.
+ * <p>
+ * A page lock is shared (S) or exclusive (X). Before it locks a page, a
+ * transaction takes an intention lock on the page's table: IS before a
+ * shared page lock and IX before an exclusive one. A table can also be
+ * locked as a whole in S, SIX (S plus IX) or X mode, and such a lock covers
+ * the pages of the table, so that no page locks are needed under it. The
+ * modes are compatible as usual: IS with all but X, IX with IS and IX, S
+ * with IS and S, SIX with IS only, and X with nothing.
+ * <p>
+ * Once a transaction holds more than the escalation threshold of page locks
+ * on one table, the page locks are escalated: the transaction takes an S
+ * lock on the table (an X lock, if any of the page locks is exclusive) and
+ * drops its page locks. Escalation never waits; if the table lock cannot be
+ * granted right away, the transaction keeps its page locks and tries again
+ * after another threshold of them. A lock with no holders and no waiters is
+ * dropped, so a big scan costs one lock, not one per page.
+ * <p>
+ * Each lock has a FIFO queue of waiting requests. A blocked transaction
+ * parks until its request is granted; grants are made in queue order, and a
+ * run of compatible requests at the head of the queue is granted together.
+ * A transaction that already holds a lock and asks for a stronger mode (an
+ * upgrade) goes to the head of the queue.
+ * <p>
+ * Deadlocks are detected on a wait-for graph. A transaction waits for every
+ * holder of a conflicting lock and for every conflicting request queued
+ * ahead of its own. Whenever a request blocks, the transaction that made it
+ * looks for a cycle through itself; if it finds one, the youngest
+ * transaction on the cycle is chosen as the victim and its pending requests
+ * are refused, so that its caller aborts it with a
+ * TransactionAbortedException. A cycle can only be closed by a request that
+ * blocks, so no other search is needed, and a wait never times out.
+ */
 public class LockManager {
 
+    /** Default number of page locks on one table above which they are escalated. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 256;
+
     private LockManager() {}
 
 //    private static LockManager instance;
@@ -15,161 +53,478 @@ public class LockManager {
         return new LockManager();
     }
 
+    /** Lock modes, from the weakest to the strongest. */
+    enum Mode {
+        IS, IX, S, SIX, X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        boolean isCompatible(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode that grants both this mode and the other */
+        Mode combine(Mode other) {
+            if (this == other) return this;
+            if (this == X || other == X) return X;
+            if ((this == IX && other == S) || (this == S && other == IX)) return SIX;
+            return ordinal() > other.ordinal() ? this : other;
+        }
+
+        boolean covers(Mode other) {
+            return combine(other) == this;
+        }
+    }
+
+    /** A request for a lock, waiting in a lock's queue. */
+    static class Request {
+        final TransactionId tid;
+        final Mode mode;
+        final Lock lock;
+        final Thread thread;
+        volatile boolean granted = false;
+        // set when the transaction is chosen as a deadlock victim
+        volatile boolean aborted = false;
+
+        Request(TransactionId tid, Mode mode, Lock lock) {
+            this.tid = tid;
+            this.mode = mode;
+            this.lock = lock;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    /**
+     * The lock on one resource: a PageId, or the Integer id of a table.
+     */
     class Lock {
 
-        private PageId pid;
-        private int lockType = 0;// read:-1 write:1 neither:0
-        private Set<TransactionId> set;
+        private final Object key;
+        private Map<TransactionId, Mode> holders = new HashMap<>();
+        private LinkedList<Request> queue = new LinkedList<>();
+        // set once the lock is idle and removed from the map
+        private boolean retired = false;
 
-        public Lock(PageId pid) {
-            this.pid = pid;
-            this.lockType = 0;
-            this.set = new HashSet<>();
+        public Lock(Object key) {
+            this.key = key;
         }
 
-        public boolean acquireReadLock(TransactionId tid) {
-            int k = 0;
-            while (true) {
-                k ++;
-                synchronized (this) {
-                    if (set.contains(tid)) return true;
-                    if (lockType != 1) {
-                        lockType = -1;
-                        set.add(tid);
-                        synchronized (tpMap) {
-                            tpMap.get(tid).add(pid);
-                        }
-                        return true;
+        /**
+         * Queues a request for the lock in the given mode, combined with the
+         * mode the transaction already holds, and grants it if it can be.
+         *
+         * @return the request, or null if the lock was retired and must be
+         *   looked up again
+         */
+        synchronized Request enqueue(TransactionId tid, Mode mode) {
+            if (retired) return null;
+            Mode held = holders.get(tid);
+            Request request = new Request(tid, held == null ? mode : held.combine(mode), this);
+            if (held != null && held.covers(mode)) {
+                request.granted = true;
+                return request;
+            }
+            if (held != null) {
+                queue.addFirst(request);
+            } else {
+                queue.addLast(request);
+            }
+            grantWaiters();
+            return request;
+        }
+
+        /**
+         * Blocks until the request is granted.
+         *
+         * @return false if the transaction was chosen as a deadlock victim
+         */
+        boolean await(Request request) throws InterruptedException {
+            if (request.granted) return true;
+            addWaiting(request);
+            try {
+                detectDeadlock(request.tid);
+                while (true) {
+                    synchronized (this) {
+                        if (request.granted) return true;
+                        if (request.aborted) return false;
                     }
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) throw new InterruptedException();
                 }
-                if (k > 10) return false;
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            } finally {
+                removeWaiting(request);
+                synchronized (this) {
+                    if (!request.granted) {
+                        queue.remove(request);
+                        // a refused request at the head may have blocked others
+                        grantWaiters();
+                        retireIfIdle();
+                    }
                 }
             }
         }
 
-        public boolean acquireWriteLock(TransactionId tid) {
-            int k = 0;
-            while (true) {
-                k ++;
-                synchronized (this) {
-                    if (lockType == 1 && set.contains(tid)) return true;
-                    if (lockType < 0 && set.size() == 1 && set.contains(tid)) {
-                        lockType = 1;
-                        return true;
-                    }
-                    if (lockType == 0) {
-                        lockType = 1;
-                        set.add(tid);
-                        synchronized (tpMap) {
-                            tpMap.get(tid).add(pid);
-                        }
-                        return true;
-                    }
+        /**
+         * Grants the lock in the given mode only if that needs no waiting,
+         * and does not jump ahead of queued requests.
+         */
+        synchronized boolean tryAcquire(TransactionId tid, Mode mode) {
+            if (retired) return false;
+            Mode held = holders.get(tid);
+            Mode want = held == null ? mode : held.combine(mode);
+            if (want == held) return true;
+            if (!queue.isEmpty() || !isCompatible(tid, want)) return false;
+            holders.put(tid, want);
+            return true;
+        }
+
+        /**
+         * Returns the transactions the given request is waiting for: the
+         * conflicting holders, and the owners of conflicting requests queued
+         * ahead of it.
+         */
+        synchronized List<TransactionId> blockersOf(Request request) {
+            List<TransactionId> blockers = new ArrayList<>();
+            if (request.granted) return blockers;
+            for (Map.Entry<TransactionId, Mode> holder : holders.entrySet()) {
+                if (!holder.getKey().equals(request.tid) && !holder.getValue().isCompatible(request.mode)) {
+                    blockers.add(holder.getKey());
                 }
-                if (k > 10) return false;
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            }
+            for (Request ahead : queue) {
+                if (ahead == request) break;
+                if (!ahead.aborted && !ahead.tid.equals(request.tid) && !ahead.mode.isCompatible(request.mode)) {
+                    blockers.add(ahead.tid);
                 }
             }
+            return blockers;
         }
 
-        public void releaseLock(TransactionId tid) {
-            synchronized (this) {
-                set.remove(tid);
-                if (set.size() == 0) lockType = 0;
-//                synchronized (tpMap) {
-//                    tpMap.get(tid).remove(pid);
-//                }
+        /**
+         * Grants requests from the head of the queue until one of them
+         * conflicts with the current holders, and wakes their threads.
+         */
+        private void grantWaiters() {
+            while (!queue.isEmpty() && isCompatible(queue.getFirst().tid, queue.getFirst().mode)) {
+                Request request = queue.removeFirst();
+                holders.put(request.tid, request.mode);
+                request.granted = true;
+                LockSupport.unpark(request.thread);
             }
         }
 
-        public boolean holdsLock(TransactionId tid) {
-            synchronized (this) {
-                return set.contains(tid);
+        private boolean isCompatible(TransactionId tid, Mode mode) {
+            for (Map.Entry<TransactionId, Mode> holder : holders.entrySet()) {
+                if (!holder.getKey().equals(tid) && !holder.getValue().isCompatible(mode)) return false;
             }
+            return true;
+        }
+
+        private void retireIfIdle() {
+            if (holders.isEmpty() && queue.isEmpty() && !retired) {
+                retired = true;
+                map.remove(key, this);
+            }
+        }
+
+        public synchronized void releaseLock(TransactionId tid) {
+            if (holders.remove(tid) == null) return;
+            grantWaiters();
+            retireIfIdle();
+        }
+
+        public synchronized boolean holdsLock(TransactionId tid) {
+            return holders.containsKey(tid);
+        }
+
+        synchronized Mode modeOf(TransactionId tid) {
+            return holders.get(tid);
         }
     }
 
-    private Map<PageId, Lock> map = new HashMap<>(); //一个Page对应一把Lock
-    private Map<TransactionId, List<PageId>> tpMap = new HashMap<>(); //一个Transaction对应多个page
+    /** The locks a transaction holds, and how many of them are page locks on each table. */
+    private static class Held {
+        final Set<Object> keys = new HashSet<>();
+        final Map<Integer, Integer> pagesPerTable = new HashMap<>();
+    }
 
-    public boolean acquireReadLock(PageId pid, TransactionId tid) {
-        Lock lock = null;
-        synchronized (map) {
-            if (!map.containsKey(pid)) {
-                map.put(pid, new Lock(pid));
+    private final Map<Object, Lock> map = new ConcurrentHashMap<>(); // PageId or table id -> Lock
+    private final Map<TransactionId, Held> tpMap = new ConcurrentHashMap<>();
+
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private final LongAdder escalations = new LongAdder();
+
+    /** The blocked requests of each waiting transaction: the wait-for graph. */
+    private final Map<TransactionId, Set<Request>> waiting = new ConcurrentHashMap<>();
+    /** Serializes deadlock searches, so one cycle yields one victim. */
+    private final Object detector = new Object();
+    private final LongAdder deadlocks = new LongAdder();
+
+    /** @return the number of deadlocks detected so far */
+    public long getDeadlockCount() {
+        return deadlocks.sum();
+    }
+
+    private void addWaiting(Request request) {
+        synchronized (waiting) {
+            Set<Request> requests = waiting.get(request.tid);
+            if (requests == null) {
+                requests = Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
+                waiting.put(request.tid, requests);
             }
-            lock = map.get(pid);
+            requests.add(request);
         }
-        synchronized (tpMap) {
-            if (!tpMap.containsKey(tid)) {
-                tpMap.put(tid, new ArrayList<PageId>());
+    }
+
+    private void removeWaiting(Request request) {
+        synchronized (waiting) {
+            Set<Request> requests = waiting.get(request.tid);
+            if (requests != null) {
+                requests.remove(request);
+                if (requests.isEmpty()) waiting.remove(request.tid);
             }
         }
-        return lock.acquireReadLock(tid);
+    }
+
+    /**
+     * Looks for cycles in the wait-for graph through the given (just
+     * blocked) transaction, and for each one found, refuses the pending
+     * requests of the youngest transaction on it. Refused requests no
+     * longer count as waiting, so the search is repeated until the
+     * transaction is on no cycle: it may have closed more than one. For the
+     * same reason, a cycle already broken by another search is not found,
+     * nor counted, again.
+     */
+    private void detectDeadlock(TransactionId tid) {
+        synchronized (detector) {
+            while (true) {
+                List<TransactionId> cycle = new ArrayList<>();
+                if (!findCycle(tid, tid, new HashSet<TransactionId>(), cycle)) return;
+                deadlocks.increment();
+
+                TransactionId victim = tid;
+                for (TransactionId t : cycle) {
+                    if (t.getId() > victim.getId()) victim = t;
+                }
+                Set<Request> requests = waiting.get(victim);
+                if (requests == null) return;
+                for (Request request : requests) {
+                    request.aborted = true;
+                    LockSupport.unpark(request.thread);
+                }
+            }
+        }
+    }
+
+    /**
+     * Depth-first search for a path in the wait-for graph from current back
+     * to start. On success, path holds the transactions on the cycle.
+     */
+    private boolean findCycle(TransactionId start, TransactionId current,
+                              Set<TransactionId> visited, List<TransactionId> path) {
+        visited.add(current);
+        path.add(current);
+        Set<Request> requests = waiting.get(current);
+        if (requests != null) {
+            for (Request request : requests) {
+                if (request.aborted) continue;
+                for (TransactionId next : request.lock.blockersOf(request)) {
+                    if (next.equals(start)) return true;
+                    if (!visited.contains(next) && findCycle(start, next, visited, path)) return true;
+                }
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getEscalationCount() {
+        return escalations.sum();
+    }
+
+    /**
+     * Sets the number of page locks a transaction may hold on one table
+     * before they are escalated to a table lock.
+     */
+    public void setEscalationThreshold(int threshold) {
+        escalationThreshold = threshold;
+    }
+
+    private Lock getLock(Object key) {
+        Lock lock = map.get(key);
+        if (lock == null) {
+            map.putIfAbsent(key, new Lock(key));
+            lock = map.get(key);
+        }
+        return lock;
+    }
+
+    private Held getHeld(TransactionId tid) {
+        Held held = tpMap.get(tid);
+        if (held == null) {
+            tpMap.putIfAbsent(tid, new Held());
+            held = tpMap.get(tid);
+        }
+        return held;
+    }
+
+    private Mode modeOf(Object key, TransactionId tid) {
+        Lock lock = map.get(key);
+        return lock == null ? null : lock.modeOf(tid);
+    }
+
+    public boolean acquireReadLock(PageId pid, TransactionId tid) {
+        return acquire(pid, tid, Mode.S);
     }
 
     public boolean acquireWriteLock(PageId pid, TransactionId tid) {
-        Lock lock = null;
-        synchronized (map) {
-            if (!map.containsKey(pid)) {
-                map.put(pid, new Lock(pid));
+        return acquire(pid, tid, Mode.X);
+    }
+
+    /**
+     * Locks a whole table, in S mode or in X mode, so that no page locks
+     * are needed on it.
+     *
+     * @return false if the transaction was chosen as a deadlock victim
+     */
+    public boolean acquireTableLock(int tableId, TransactionId tid, boolean exclusive) {
+        if (tid == null) return true;
+        return lock(tableId, tid, exclusive ? Mode.X : Mode.S);
+    }
+
+    private boolean acquire(PageId pid, TransactionId tid, Mode mode) {
+        // statistics scans (see TableStats) read outside any transaction
+        if (tid == null) return true;
+        Integer table = pid.getTableId();
+        Mode tableMode = modeOf(table, tid);
+        if (tableMode != null && tableMode.covers(mode)) return true;
+        if (!lock(table, tid, mode == Mode.X ? Mode.IX : Mode.IS)) return false;
+        if (!lock(pid, tid, mode)) return false;
+
+        Held held = getHeld(tid);
+        synchronized (held) {
+            Integer pages = held.pagesPerTable.get(table);
+            if (pages != null && pages > escalationThreshold) escalate(table, tid, held);
+        }
+        return true;
+    }
+
+    /**
+     * Locks a resource, waiting if needed, and records it as held by the
+     * transaction.
+     */
+    private boolean lock(Object key, TransactionId tid, Mode mode) {
+        Request request;
+        do {
+            request = getLock(key).enqueue(tid, mode);
+        } while (request == null);
+        try {
+            if (!request.lock.await(request)) return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        Held held = getHeld(tid);
+        synchronized (held) {
+            if (held.keys.add(key) && key instanceof PageId) {
+                Integer table = ((PageId) key).getTableId();
+                Integer pages = held.pagesPerTable.get(table);
+                held.pagesPerTable.put(table, pages == null ? 1 : pages + 1);
             }
-            lock = map.get(pid);
         }
-        synchronized (tpMap) {
-            if (!tpMap.containsKey(tid)) {
-                tpMap.put(tid, new ArrayList<PageId>());
+        return true;
+    }
+
+    /**
+     * Replaces the transaction's page locks on a table by one table lock, if
+     * that lock can be granted without waiting.
+     */
+    private void escalate(Integer table, TransactionId tid, Held held) {
+        List<PageId> pages = new ArrayList<>();
+        Mode mode = Mode.S;
+        for (Object key : held.keys) {
+            if (key instanceof PageId && ((PageId) key).getTableId() == table) {
+                pages.add((PageId) key);
+                if (modeOf(key, tid) == Mode.X) mode = Mode.X;
             }
         }
-        return lock.acquireWriteLock(tid);
+        if (!getLock(table).tryAcquire(tid, mode)) {
+            // try again after another threshold of page locks
+            held.pagesPerTable.put(table, 0);
+            return;
+        }
+        for (PageId pid : pages) {
+            held.keys.remove(pid);
+            Lock lock = map.get(pid);
+            if (lock != null) lock.releaseLock(tid);
+        }
+        held.pagesPerTable.remove(table);
+        escalations.increment();
     }
 
     public void releasePage(PageId pid, TransactionId tid, boolean tpMapRemove) {
-        Lock lock = null;
-        synchronized (map) {
-            lock = map.get(pid);
-        }
+        if (tid == null) return;
         if (tpMapRemove) {
-            synchronized (tpMap) {
-                tpMap.get(tid).remove(pid);
+            Held held = tpMap.get(tid);
+            if (held != null) {
+                synchronized (held) {
+                    if (held.keys.remove(pid)) {
+                        Integer pages = held.pagesPerTable.get(pid.getTableId());
+                        if (pages != null && pages > 0) held.pagesPerTable.put(pid.getTableId(), pages - 1);
+                    }
+                }
             }
         }
-        lock.releaseLock(tid);
+        Lock lock = map.get(pid);
+        if (lock != null) lock.releaseLock(tid);
     }
 
     public void releaseLock(TransactionId tid) {
-        List<PageId> pageIds = null;
-        synchronized (tpMap) {
-            pageIds = tpMap.get(tid);
-            if (pageIds != null) {
-                for (PageId pageId : pageIds) {
-                    releasePage(pageId, tid, false);
-                }
-                tpMap.get(tid).clear();
+        if (tid == null) return;
+        Held held = tpMap.remove(tid);
+        if (held == null) return;
+        synchronized (held) {
+            for (Object key : held.keys) {
+                Lock lock = map.get(key);
+                if (lock != null) lock.releaseLock(tid);
             }
         }
     }
 
+    /**
+     * Return true if the transaction has a lock on the page, either on the
+     * page itself or on its whole table.
+     */
     public boolean holdsLock(PageId pid, TransactionId tid) {
-        Lock lock = null;
-        synchronized (map) {
-            lock = map.get(pid);
-            if (lock == null) return false;
-        }
-        return lock.holdsLock(tid);
+        if (tid == null) return false;
+        Lock lock = map.get(pid);
+        if (lock != null && lock.holdsLock(tid)) return true;
+        Mode tableMode = modeOf(pid.getTableId(), tid);
+        return tableMode != null && tableMode.covers(Mode.S);
     }
 
+    /**
+     * Returns the pages the transaction holds page locks on; pages covered
+     * by a table lock are not listed.
+     */
     public List<PageId> getPages(TransactionId tid) {
-        synchronized (tpMap) {
-            if (!tpMap.containsKey(tid)) return null;
-            return new ArrayList<>(tpMap.get(tid));
+        if (tid == null) return null;
+        Held held = tpMap.get(tid);
+        if (held == null) return null;
+        List<PageId> pages = new ArrayList<>();
+        synchronized (held) {
+            for (Object key : held.keys) {
+                if (key instanceof PageId) pages.add((PageId) key);
+            }
         }
+        return pages;
     }
 }
@@ -2,8 +2,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.*;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +34,51 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Buffering and group commit: </u>
+<p>
+
+Log records are appended to an in-memory buffer, which is written to the
+file when it fills up, and when the log is forced or read. Offsets of
+records are logical file offsets, so they count buffered bytes as well.
+<p>
+
+A committing transaction appends its COMMIT record and then waits, without
+holding the LogFile monitor, until the log is durable up to that record.
+The first committer to wait becomes the leader: it waits up to the group
+commit delay for more committers to arrive (or until the batch size is
+reached), writes the buffer out, and calls FileChannel.force once for
+all of them. Committers that arrive while the leader is in force() wait
+for the next leader, so a busy system forces the log once per group of
+commits rather than once per commit, even with no delay configured.
+
+<u> Rollback and recovery: </u>
+<p>
+
+Rollback undoes the transaction's logged deltas on the pages on disk,
+newest first, and logs each restored page as another UPDATE record of the
+transaction (a compensation record), so that the transaction's history in
+the log ends with its pages as they were before it began.
+<p>
+
+Checkpoints are fuzzy: they flush nothing, and need neither the
+BufferPool monitor nor any wait for its pages. Since a page's change is
+logged when the page is written, the log holds nothing that the disk
+lacks except for pages between their UPDATE record and the end of their
+write; the BufferPool keeps those in its dirty page table, which the
+checkpoint records along with the active transactions.
+<p>
+
+Recovery reads the log from the last checkpoint, from the first record
+of a transaction that was active at the checkpoint, or from the first
+record of the checkpoint's dirty page table, whichever is earliest, and
+finds the transactions that neither committed nor aborted. Every
+UPDATE record from the checkpoint or the dirty page table on is redone,
+and every UPDATE record of an unfinished transaction is then undone,
+newest first. Since deltas touch a single page and set bytes to logged
+values, the work splits by page: each page is read once, has its
+records redone and undone in log order, and is written once, and pages
+are spread over several threads.
 */
 
 /**
@@ -39,11 +86,16 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself holds only a long integer, the offset of the
+last written checkpoint, or -1 if there are no checkpoints, followed by
+an integer segment size.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are kept in a directory next to it, named after
+the log file with ".segments" appended, as a sequence of segment files
+of that size (see {@link LogSegments}).  Offsets of records are logical
+positions in this sequence; they never change, and the oldest segments
+are deleted once no record in them is needed.  Log records are variable
+length, and may continue from one segment into the next.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
@@ -56,16 +108,22 @@ CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS identify a page by the byte tag its type is
+registered under, its integer table id and its integer page number (see
+{@link PageCodec#writeId}), and then describe how one flush of the
+page changed it, as a {@link PageDelta}: the runs of bytes that differ
+between the page as last written and the page as written now, with
+their old and new contents. The offset of the record is stamped on the
+page as its LSN (see {@link Page#getLsn()}).
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  This is followed by the dirty page table:
+an integer count of pages, and for each page its id (in the same
+form as in UPDATE records) and the long integer offset of the first UPDATE record
+for it that was logged but may not have been written to the page yet.
 
 </ul>
 
@@ -74,7 +132,13 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    final File segmentDir;
+    // the log file: checkpoint offset and segment size
+    private final RandomAccessFile anchor;
+    private final LogSegments segments;
+    // segment size for a new log
+    private final int segmentSize;
+    private long checkpointOffset = NO_CHECKPOINT_ID; //protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -86,6 +150,10 @@ public class LogFile {
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int ANCHOR_SIZE = LONG_SIZE + INT_SIZE;
+
+    /** Default size of a log segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 22;
 
     long currentOffset = -1;//protected by this
 //    int pageSize;
@@ -93,6 +161,40 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** Size at which the log buffer is written out to the file. */
+    static final int LOG_BUFFER_SIZE = 1 << 16;
+    /** Default number of waiting committers that ends a group commit delay. */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 16;
+
+    /** A ByteArrayOutputStream that can write its contents without a copy. */
+    private static class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer() {
+            super(LOG_BUFFER_SIZE);
+        }
+
+        void writeTo(LogSegments segments) throws IOException {
+            segments.append(buf, 0, count);
+        }
+    }
+
+    // records appended since the last write to the file //protected by this
+    private final LogBuffer buffer = new LogBuffer();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    // length of the file, where the buffer goes //protected by this
+    private long fileLength = 0;
+    // the log is on disk up to here //protected by this
+    private long durableOffset = 0;
+    // set while a leader forces the log for a group of committers
+    private boolean syncing = false;
+    // committers waiting for the log to be durable //protected by this
+    private int commitsWaiting = 0;
+    private long groupCommitDelayNanos = 0;
+    private int groupCommitBatch = DEFAULT_GROUP_COMMIT_BATCH;
+    private long forces = 0; //protected by this
+
+    private int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    private RecoveryStats recoveryStats = null;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,9 +207,29 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        Initialize and back the log file with the specified file, keeping
+        the records of a new log in segments of the given size.  An
+        existing log keeps the segment size it was created with.
+
+        @param f The log file's name
+        @param segmentSize The size of a segment file in bytes
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        this.segmentDir = new File(f.getPath() + ".segments");
+        this.segmentSize = segmentSize;
+        anchor = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        int size = segmentSize;
+        if (anchor.length() == ANCHOR_SIZE) {
+            anchor.seek(LONG_SIZE);
+            size = anchor.readInt();
+        }
+        segments = new LogSegments(segmentDir, size);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -127,14 +249,62 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            buffer.reset();
+            segments.reset(segmentSize);
+            writeAnchor(NO_CHECKPOINT_ID);
+            currentOffset = segments.length();
+            fileLength = currentOffset;
+            durableOffset = currentOffset;
         }
     }
 
+    /** Points the log file at the given checkpoint, and forces it to disk. */
+    private void writeAnchor(long cpOffset) throws IOException {
+        anchor.seek(0);
+        anchor.writeLong(cpOffset);
+        anchor.writeInt(segments.getSegmentSize());
+        anchor.setLength(ANCHOR_SIZE);
+        anchor.getChannel().force(true);
+        checkpointOffset = cpOffset;
+    }
+
+    /** @return the logical offset at which the next record is appended */
+    private long offset() {
+        return fileLength + buffer.size();
+    }
+
+    /** Writes out the buffer if it is full. */
+    private void appended() throws IOException {
+        if (buffer.size() >= LOG_BUFFER_SIZE) flushBuffer();
+    }
+
+    /**
+     * Writes the buffered records to the end of the segments, without
+     * forcing them to disk. Must be called before the log is read.
+     */
+    synchronized void flushBuffer() throws IOException {
+        if (buffer.size() == 0) return;
+        buffer.writeTo(segments);
+        fileLength += buffer.size();
+        buffer.reset();
+    }
+
+    /**
+     * Sets how a group of concurrent commits shares one force of the log:
+     * the leader of a group waits up to maxDelayMicros for other committers,
+     * but no longer once batchSize of them are waiting. With a delay of 0
+     * (the default), commits are only grouped while a force is under way.
+     */
+    public synchronized void setGroupCommit(long maxDelayMicros, int batchSize) {
+        groupCommitDelayNanos = maxDelayMicros * 1000;
+        groupCommitBatch = batchSize;
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    public synchronized long getForceCount() {
+        return forces;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -158,141 +328,267 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = offset();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
         }
     }
 
+    /** @return whether the transaction has log records and has not yet
+        committed or aborted
+    */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long commitEnd;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = offset();
+            commitEnd = currentOffset;
+            tidToFirstLogRecord.remove(tid.getId());
+            appended();
+        }
+        awaitDurable(commitEnd, true);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Waits until the log is on disk up to the given offset, forcing it as
+     * the leader of a group commit if no other thread is doing so. Only a
+     * committer (group set) waits for others to join its group.
+     */
+    private void awaitDurable(long end, boolean group) throws IOException {
+        FileChannel channel;
+        long target;
+        synchronized (this) {
+            if (group) {
+                commitsWaiting++;
+                notifyAll();
+            }
+            try {
+                while (true) {
+                    if (durableOffset >= end) return;
+                    if (!syncing) break;
+                    wait();
+                }
+                syncing = true;
+                // wait for more committers to join the group
+                long deadline = System.nanoTime() + groupCommitDelayNanos;
+                long remaining = group ? groupCommitDelayNanos : 0;
+                while (remaining > 0 && commitsWaiting < groupCommitBatch) {
+                    wait(remaining / 1000000, (int) (remaining % 1000000));
+                    remaining = deadline - System.nanoTime();
+                }
+                flushBuffer();
+                target = fileLength;
+                channel = segments.tailChannel();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                if (group) commitsWaiting--;
+            }
+        }
+
+        // force without the monitor, so that others can keep appending
+        boolean forced = false;
+        try {
+            if (channel != null) channel.force(true);
+            forced = true;
+        } catch (ClosedChannelException e) {
+            // the tail moved on, which forced it
+            forced = true;
+        } finally {
+            synchronized (this) {
+                if (forced) {
+                    forces++;
+                    if (target > durableOffset) durableOffset = target;
+                }
+                syncing = false;
+                notifyAll();
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Only the bytes
+        that differ between the two images are logged, and the after
+        image is stamped with the offset of the record as its LSN.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see simpledb.Page#getBeforeImage
+        @see PageDelta
     */
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + offset());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page id (see PageCodec.writeId)
+           page delta (see PageDelta.writeTo)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        // a transaction run without Transaction.start() has no BEGIN
+        // record; its first update takes its place, so that it can be
+        // rolled back like any other
+        if (!tidToFirstLogRecord.containsKey(tid.getId()))
+            tidToFirstLogRecord.put(tid.getId(), currentOffset);
+        PageDelta delta = PageDelta.diff(before.getPageData(), after.getPageData());
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
+
+        PageCodec.forPage(after).writeId(out, after.getId());
+        delta.writeTo(out);
+        out.writeLong(currentOffset);
+        after.setLsn(currentOffset);
+        currentOffset = offset();
+        appended();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** A log record read back by a LogReader. */
+    static class LogRecord {
+        int type;
+        long tid;
+        // offset of the record in the log
+        long offset;
+        // for UPDATE records
+        PageId pid;
+        PageDelta delta;
+        // for CHECKPOINT records, first record offset by transaction id
+        Map<Long,Long> active;
+        // and the dirty page table
+        Map<PageId,Long> dirty;
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Counts the bytes read through it. */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /**
+     * Reads the records of the log in order from a given offset, through
+     * its own buffered stream over the segment files. The log buffer must
+     * be written out first.
+     */
+    class LogReader implements Closeable {
+        private final InputStream file;
+        private final CountingInputStream counter;
+        private final DataInputStream in;
+        private final long start;
+
+        LogReader(long from) throws IOException {
+            file = segments.openStream(from);
+            counter = new CountingInputStream(new BufferedInputStream(file, LOG_BUFFER_SIZE));
+            in = new DataInputStream(counter);
+            start = from;
+        }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        /** @return the offset just past the last complete record read */
+        long position() {
+            return start + counter.count;
+        }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+        /**
+         * @return the next record, or null at the end of the log, including
+         *   at a record that was only partly written
+         */
+        LogRecord next() throws IOException {
+            long at = position();
+            LogRecord r = new LogRecord();
+            try {
+                r.type = in.readInt();
+                r.tid = in.readLong();
+                switch (r.type) {
+                case UPDATE_RECORD:
+                    r.pid = PageCodec.readId(in);
+                    r.delta = PageDelta.readFrom(in, BufferPool.getPageSize());
+                    break;
+                case CHECKPOINT_RECORD:
+                    int numXactions = in.readInt();
+                    r.active = new HashMap<Long,Long>();
+                    while (numXactions-- > 0) {
+                        long xid = in.readLong();
+                        r.active.put(xid, in.readLong());
+                    }
+                    int numPages = in.readInt();
+                    r.dirty = new HashMap<PageId,Long>();
+                    while (numPages-- > 0) {
+                        PageId pid = PageCodec.readId(in);
+                        r.dirty.put(pid, in.readLong());
+                    }
+                    break;
+                case ABORT_RECORD:
+                case COMMIT_RECORD:
+                case BEGIN_RECORD:
+                    break;
+                default:
+                    return end(at);
+                }
+                r.offset = in.readLong();
+            } catch (EOFException e) {
+                return end(at);
+            } catch (StreamCorruptedException e) {
+                // a torn record whose counts are garbage
+                return end(at);
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+            if (r.offset != at) return end(at);
+            return r;
+        }
+
+        private LogRecord end(long at) {
+            counter.count = at - start;
+            return null;
         }
-        return newPage;
 
+        public void close() throws IOException {
+            file.close();
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +603,100 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = offset();
+        appended();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: no pages are flushed, and transactions keep running
+        while it is taken.  The record holds the active transactions and
+        the BufferPool's dirty page table, which together tell recovery
+        where to start reading the log.
+
+        @see BufferPool#getDirtyPageTable()
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        // the dirty page table is only changed with this monitor held, so
+        // no page is missed between the snapshot and the record
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            Map<PageId, Long> dirty = Database.getBufferPool().getDirtyPageTable();
+            startCpOffset = offset();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                out.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                out.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirty.size());
+            for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                PageCodec.forId(e.getKey()).writeId(out, e.getKey());
+                out.writeLong(e.getValue());
             }
+            out.writeLong(currentOffset);
+            currentOffset = offset();
+
+            //once the CP is durable, make sure the CP location in the
+            // log file is updated
+            force();
+            writeAnchor(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        consumption.  The segments before the first record recovery might
+        need are deleted; since no record moves, this takes no time in
+        the size of the log, and appends go on meanwhile. */
+    public void logTruncate() throws IOException {
+        long cpLoc;
+        synchronized (this) {
+            preAppend();
+            cpLoc = checkpointOffset;
+        }
+        if (cpLoc == NO_CHECKPOINT_ID) return;
 
+        // the checkpoint record is on disk, and its segment is kept
         long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        LogReader reader = new LogReader(cpLoc);
+        LogRecord cp;
+        try {
+            cp = reader.next();
+        } finally {
+            reader.close();
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        if (cp == null || cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        for (long firstLogRecord : cp.active.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        for (long recLsn : cp.dirty.values()) {
+            minLogRecord = Math.min(minLogRecord, recLsn);
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        int dropped = segments.dropBefore(minLogRecord);
+        Debug.log("TRUNCATING LOG BEFORE " + minLogRecord + ": DROPPED " + dropped + " SEGMENTS");
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,6 +713,50 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " has no log records");
+
+                // the transaction's updates, by page, in log order
+                Map<PageId, List<LogRecord>> updates = new LinkedHashMap<PageId, List<LogRecord>>();
+                flushBuffer();
+                LogReader reader = new LogReader(first);
+                try {
+                    LogRecord r;
+                    while ((r = reader.next()) != null) {
+                        if (r.type != UPDATE_RECORD || r.tid != tid.getId()) continue;
+                        List<LogRecord> records = updates.get(r.pid);
+                        if (records == null) {
+                            records = new ArrayList<LogRecord>();
+                            updates.put(r.pid, records);
+                        }
+                        records.add(r);
+                    }
+                } finally {
+                    reader.close();
+                }
+
+                List<Page> restored = new ArrayList<Page>();
+                for (Map.Entry<PageId, List<LogRecord>> e : updates.entrySet()) {
+                    PageId pid = e.getKey();
+                    List<LogRecord> records = e.getValue();
+                    Page current = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                    byte[] data = current.getPageData();
+                    for (int i = records.size() - 1; i >= 0; i--) {
+                        records.get(i).delta.undo(data);
+                    }
+                    Page page = PageCodec.forId(pid).makePage(pid, data);
+                    logWrite(tid, current, page);
+                    restored.add(page);
+                }
+                if (!restored.isEmpty()) force();
+                BufferPool pool = Database.getBufferPool();
+                for (Page page : restored) {
+                    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                    pool.discardPage(page.getId());
+                }
+                // pages it changed but never wrote are simply dropped
+                pool.restorePages(tid);
             }
         }
     }
@@ -475,13 +765,19 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
-        try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
-        } catch (IOException e) {
-            System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
-            e.printStackTrace();
+    public void shutdown() {
+        synchronized (Database.getBufferPool()) {
+            synchronized (this) {
+                try {
+                    logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                    awaitSync();
+                    segments.close();
+                    anchor.close();
+                } catch (IOException e) {
+                    System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
@@ -494,17 +790,253 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                long startTime = System.currentTimeMillis();
+                RecoveryStats stats = new RecoveryStats();
+                buffer.reset();
+                if (anchor.length() != ANCHOR_SIZE || segments.length() == 0) {
+                    // nothing was ever logged; start a new log on first append
+                    recoveryUndecided = true;
+                    recoveryStats = stats;
+                    return;
+                }
+                anchor.seek(0);
+                long cpLoc = anchor.readLong();
+                checkpointOffset = cpLoc;
+
+                // analysis: find the unfinished transactions and the updates
+                // that must be redone or undone
+                long redoStart = segments.firstOffset();
+                long scanStart = redoStart;
+                Set<Long> losers = new HashSet<Long>();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    redoStart = cpLoc;
+                    scanStart = cpLoc;
+                    LogReader reader = new LogReader(cpLoc);
+                    try {
+                        LogRecord cp = reader.next();
+                        if (cp == null || cp.type != CHECKPOINT_RECORD)
+                            throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                        for (Map.Entry<Long,Long> e : cp.active.entrySet()) {
+                            losers.add(e.getKey());
+                            scanStart = Math.min(scanStart, e.getValue());
+                        }
+                        for (long recLsn : cp.dirty.values()) {
+                            redoStart = Math.min(redoStart, recLsn);
+                        }
+                        scanStart = Math.min(scanStart, redoStart);
+                    } finally {
+                        reader.close();
+                    }
+                }
+
+                Map<PageId, List<LogRecord>> byPage = new LinkedHashMap<PageId, List<LogRecord>>();
+                Set<Long> finished = new HashSet<Long>();
+                long end;
+                LogReader reader = new LogReader(scanStart);
+                try {
+                    LogRecord r;
+                    while ((r = reader.next()) != null) {
+                        stats.recordsScanned++;
+                        switch (r.type) {
+                        case BEGIN_RECORD:
+                            losers.add(r.tid);
+                            break;
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            losers.remove(r.tid);
+                            finished.add(r.tid);
+                            break;
+                        case UPDATE_RECORD:
+                            // a transaction run without Transaction.start()
+                            // has no BEGIN; its first update stands for it
+                            if (!finished.contains(r.tid)) losers.add(r.tid);
+                            List<LogRecord> records = byPage.get(r.pid);
+                            if (records == null) {
+                                records = new ArrayList<LogRecord>();
+                                byPage.put(r.pid, records);
+                            }
+                            records.add(r);
+                            break;
+                        }
+                    }
+                    end = reader.position();
+                } finally {
+                    reader.close();
+                }
+
+                // drop a record that was only partly written
+                segments.setLength(end);
+                fileLength = end;
+                durableOffset = end;
+                currentOffset = end;
+
+                // keep only the updates to redo or undo
+                Iterator<List<LogRecord>> pages = byPage.values().iterator();
+                while (pages.hasNext()) {
+                    List<LogRecord> records = pages.next();
+                    Iterator<LogRecord> it = records.iterator();
+                    while (it.hasNext()) {
+                        LogRecord r = it.next();
+                        if (r.offset < redoStart && !losers.contains(r.tid)) it.remove();
+                    }
+                    if (records.isEmpty()) pages.remove();
+                }
+
+                replay(byPage, losers, redoStart, stats);
+
+                BufferPool pool = Database.getBufferPool();
+                for (PageId pid : byPage.keySet()) {
+                    pool.discardPage(pid);
+                }
+
+                // the losers are rolled back now; a checkpoint records that
+                // every page is on disk, so they are not undone again
+                for (Long tid : losers) {
+                    preAppend();
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    currentOffset = offset();
+                }
+                tidToFirstLogRecord.clear();
+                stats.losers = losers.size();
+                logCheckpoint();
+
+                stats.millis = System.currentTimeMillis() - startTime;
+                recoveryStats = stats;
+                Debug.log("RECOVERY: " + stats);
             }
          }
     }
 
+    /**
+     * Replays the given records onto their pages, spreading the pages over
+     * up to recoveryThreads threads. Each page is read from disk once, has
+     * the records from redoStart on redone and then those of the losers
+     * undone, newest first, and is written back once.
+     */
+    private void replay(Map<PageId, List<LogRecord>> byPage, final Set<Long> losers,
+                        final long redoStart, RecoveryStats stats) throws IOException {
+        int threads = Math.max(1, Math.min(recoveryThreads, byPage.size()));
+        stats.threads = threads;
+        stats.pagesReplayed = byPage.size();
+        if (byPage.isEmpty()) return;
+
+        // partition by page; files are looked up here, since the catalog
+        // is not thread safe
+        final List<List<Map.Entry<PageId, List<LogRecord>>>> partitions =
+            new ArrayList<List<Map.Entry<PageId, List<LogRecord>>>>();
+        final Map<PageId, DbFile> files = new HashMap<PageId, DbFile>();
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ArrayList<Map.Entry<PageId, List<LogRecord>>>());
+        }
+        for (Map.Entry<PageId, List<LogRecord>> e : byPage.entrySet()) {
+            partitions.get(Math.floorMod(e.getKey().hashCode(), threads)).add(e);
+            files.put(e.getKey(), Database.getCatalog().getDatabaseFile(e.getKey().getTableId()));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+            for (final List<Map.Entry<PageId, List<LogRecord>>> partition : partitions) {
+                results.add(executor.submit(new Callable<long[]>() {
+                    public long[] call() throws IOException {
+                        long redone = 0, undone = 0;
+                        for (Map.Entry<PageId, List<LogRecord>> e : partition) {
+                            PageId pid = e.getKey();
+                            List<LogRecord> records = e.getValue();
+                            DbFile file = files.get(pid);
+                            byte[] data;
+                            try {
+                                data = file.readPage(pid).getPageData();
+                            } catch (IllegalArgumentException notWritten) {
+                                // the page was added to the file but never written
+                                data = new byte[BufferPool.getPageSize()];
+                            }
+                            for (LogRecord r : records) {
+                                if (r.offset < redoStart) continue;
+                                r.delta.redo(data);
+                                redone++;
+                            }
+                            for (int i = records.size() - 1; i >= 0; i--) {
+                                LogRecord r = records.get(i);
+                                if (!losers.contains(r.tid)) continue;
+                                r.delta.undo(data);
+                                undone++;
+                            }
+                            file.writePage(PageCodec.forId(pid).makePage(pid, data));
+                        }
+                        return new long[]{redone, undone};
+                    }
+                }));
+            }
+            for (Future<long[]> f : results) {
+                long[] counts = f.get();
+                stats.recordsRedone += counts[0];
+                stats.recordsUndone += counts[1];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Sets the number of threads recover() replays pages on. The default
+     * is the number of processors.
+     */
+    public synchronized void setRecoveryThreads(int threads) {
+        recoveryThreads = threads;
+    }
+
+    /** @return what the last call to recover() did, or null if it was not called */
+    public synchronized RecoveryStats getRecoveryStats() {
+        return recoveryStats;
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
+    /**
+     * Forces the log to disk at least through the record at the given
+     * offset, such as the LSN of a page about to be written back. Returns
+     * at once if that part of the log is already on disk.
+     */
+    public void force(long lsn) throws IOException {
+        long end;
+        synchronized (this) {
+            if (lsn < durableOffset) return;
+            // an LSN from before a truncation may lie past the end
+            end = Math.min(lsn + 1, offset());
+        }
+        awaitDurable(end, false);
+    }
+
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        flushBuffer();
+        segments.force();
+        forces++;
+        durableOffset = fileLength;
+    }
+
+    /**
+     * Waits for a group commit leader to finish forcing the log, so that
+     * the file can be replaced or closed.
+     */
+    private synchronized void awaitSync() throws InterruptedIOException {
+        try {
+            while (syncing) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
     }
 
 }
@@ -0,0 +1,232 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the bytes of a {@link LogFile} in a directory of
+ * segment files of a fixed size. A position in the log (an LSN) is a
+ * logical offset that never changes: segment n holds the positions from
+ * n * segmentSize up to (n + 1) * segmentSize, and is named after the first
+ * of them. Records may run over from one segment into the next.
+ * <p>
+ * Dropping the oldest part of the log deletes whole segment files, so it
+ * costs nothing in the size of the log and does not move any record.
+ * <p>
+ * Appends go to the last segment, the tail. A segment is forced to disk
+ * and closed when the tail moves past it, so only the tail ever has bytes
+ * that are not on disk yet.
+ *
+ * @Threadsafe
+ */
+public class LogSegments {
+
+    private static final String SUFFIX = ".seg";
+
+    private final File dir;
+    private int segmentSize;
+    // number of the oldest segment kept
+    private long first = 0;
+    // logical length of the log
+    private long length = 0;
+    private RandomAccessFile tail = null;
+    private long tailNo = -1;
+
+    /**
+     * Opens the segments in the given directory, creating it if needed.
+     *
+     * @param dir the directory of segment files
+     * @param segmentSize the size of a segment in bytes
+     */
+    public LogSegments(File dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create log directory " + dir);
+        List<Long> numbers = numbers();
+        if (!numbers.isEmpty()) {
+            first = numbers.get(0);
+            long last = numbers.get(numbers.size() - 1);
+            length = last * segmentSize + file(last).length();
+        }
+    }
+
+    /** @return the size of a segment in bytes */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the logical length of the log, where the next byte goes */
+    public synchronized long length() {
+        return length;
+    }
+
+    /** @return the position of the oldest byte still kept */
+    public synchronized long firstOffset() {
+        return first * segmentSize;
+    }
+
+    /** @return the number of segment files */
+    public synchronized int numSegments() {
+        return numbers().size();
+    }
+
+    /** @return the numbers of the segment files in the directory, in order */
+    private List<Long> numbers() {
+        List<Long> numbers = new ArrayList<Long>();
+        String[] names = dir.list();
+        if (names == null) return numbers;
+        for (String name : names) {
+            if (!name.endsWith(SUFFIX)) continue;
+            try {
+                numbers.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) / segmentSize);
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private File file(long n) {
+        return new File(dir, String.format("%020d%s", n * segmentSize, SUFFIX));
+    }
+
+    /** Deletes every segment, leaving an empty log with the given segment size. */
+    public synchronized void reset(int segmentSize) throws IOException {
+        closeTail();
+        for (long n : numbers()) {
+            file(n).delete();
+        }
+        this.segmentSize = segmentSize;
+        first = 0;
+        length = 0;
+    }
+
+    /** Appends bytes at the end of the log, without forcing them to disk. */
+    public synchronized void append(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long n = length / segmentSize;
+            if (n != tailNo) {
+                // the old tail is full; it stays on disk from now on
+                if (tail != null) tail.getChannel().force(true);
+                closeTail();
+                tail = new RandomAccessFile(file(n), "rw");
+                tailNo = n;
+            }
+            int pos = (int) (length % segmentSize);
+            int count = Math.min(len, segmentSize - pos);
+            tail.seek(pos);
+            tail.write(b, off, count);
+            length += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Returns the channel of the tail, for forcing appended bytes to disk
+     * without holding this object's monitor. The channel is closed once the
+     * tail moves on, which forces it first; a caller that finds it closed
+     * can take its bytes as being on disk.
+     *
+     * @return the channel, or null if nothing was appended since opening
+     */
+    public synchronized FileChannel tailChannel() {
+        return tail == null ? null : tail.getChannel();
+    }
+
+    /** Forces the appended bytes to disk. */
+    public synchronized void force() throws IOException {
+        if (tail != null) tail.getChannel().force(true);
+    }
+
+    /**
+     * Drops the segments that hold only positions before the given one. The
+     * tail is always kept.
+     *
+     * @return the number of segment files deleted
+     */
+    public synchronized int dropBefore(long offset) {
+        long keep = Math.min(offset / segmentSize, length / segmentSize);
+        int dropped = 0;
+        for (; first < keep; first++) {
+            if (file(first).delete()) dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Cuts the log off at the given position, such as the end of the last
+     * complete record found by recovery.
+     */
+    public synchronized void setLength(long end) throws IOException {
+        closeTail();
+        long last = end / segmentSize;
+        for (long n : numbers()) {
+            if (n > last) file(n).delete();
+        }
+        RandomAccessFile f = new RandomAccessFile(file(last), "rw");
+        try {
+            f.setLength(end % segmentSize);
+        } finally {
+            f.close();
+        }
+        length = end;
+        if (first > last) first = last;
+    }
+
+    /**
+     * Opens a stream over the log from the given position to the end of the
+     * bytes appended so far. The stream reads the segment files directly,
+     * so it is not affected by appends after it reaches the end.
+     */
+    public InputStream openStream(final long from) {
+        return new InputStream() {
+            private long pos = from;
+            private FileInputStream in = null;
+
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (in == null) {
+                    File f = file(pos / segmentSize);
+                    if (!f.exists()) return -1;
+                    in = new FileInputStream(f);
+                    in.getChannel().position(pos % segmentSize);
+                }
+                int rest = segmentSize - (int) (pos % segmentSize);
+                int n = in.read(b, off, Math.min(len, rest));
+                if (n < 0) return -1;
+                pos += n;
+                if (n == rest) {
+                    // go on with the next segment
+                    in.close();
+                    in = null;
+                }
+                return n;
+            }
+
+            public void close() throws IOException {
+                if (in != null) in.close();
+                in = null;
+            }
+        };
+    }
+
+    private void closeTail() throws IOException {
+        if (tail != null) tail.close();
+        tail = null;
+        tailNo = -1;
+    }
+
+    /** Closes the tail. */
+    public synchronized void close() throws IOException {
+        closeTail();
+    }
+}
@@ -35,6 +35,7 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1;
     private String query;
 //    private Query owner;
 
@@ -216,6 +217,17 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT on the number of tuples the query returns.  With an ORDER BY, the sort
+        only keeps the first n tuples.
+        @param n the largest number of tuples to return
+     * @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("Negative LIMIT " + n);
+        limit = n;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -462,9 +474,15 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
+                int gField = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+                // input that arrives grouped is aggregated a group at a time
+                if (gField != Aggregator.NO_GROUPING && SortAggregate.isOrderedOn(node, gField))
+                    aggNode = new SortAggregate(node, td.fieldNameToIndex(aggField), gField,
+                                getAggOp(aggOp));
+                else
+                    aggNode = new Aggregate(node,
                                         td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
+                                        gField,
                                 getAggOp(aggOp));
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
@@ -475,7 +493,13 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int oByIndex = node.getTupleDesc().fieldNameToIndex(oByField);
+            if (limit >= 0)
+                node = new TopN(oByIndex, oByAsc, limit, node);
+            else
+                node = new OrderBy(oByIndex, oByAsc, node);
+        } else if (limit >= 0) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
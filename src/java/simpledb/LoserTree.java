@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LoserTree merges k sorted streams of tuples into one sorted stream. It is
+ * a tournament tree whose internal nodes each hold the stream that lost the
+ * match played there, with the overall winner kept apart; taking a tuple
+ * replays only the matches on the path from its stream to the root, so each
+ * tuple costs about log2(k) comparisons.
+ * <p>
+ * Tuples that compare equal come out in the order of their streams, so
+ * merging runs of a stable sort in the order they were made is stable.
+ */
+class LoserTree implements Iterator<Tuple> {
+
+    private final List<Iterator<Tuple>> streams;
+    private final Comparator<Tuple> cmp;
+    private final int k;
+    // the head of each stream, null once it is used up
+    private final Tuple[] heads;
+    // tree[0] is the winner, tree[1..k-1] the losers of the matches; the
+    // leaves, streams 0..k-1, are nodes k..2k-1
+    private final int[] tree;
+
+    /**
+     * @param streams the sorted streams to merge
+     * @param cmp the order the streams are sorted in
+     */
+    public LoserTree(List<Iterator<Tuple>> streams, Comparator<Tuple> cmp) {
+        this.streams = streams;
+        this.cmp = cmp;
+        this.k = streams.size();
+        this.heads = new Tuple[k];
+        this.tree = new int[Math.max(k, 1)];
+        for (int i = 0; i < k; i++) {
+            heads[i] = advance(i);
+        }
+        if (k > 0) tree[0] = play(1);
+    }
+
+    private Tuple advance(int stream) {
+        Iterator<Tuple> it = streams.get(stream);
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /** @return whether stream a's head goes before stream b's */
+    private boolean beats(int a, int b) {
+        if (heads[a] == null) return false;
+        if (heads[b] == null) return true;
+        int c = cmp.compare(heads[a], heads[b]);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    /** Plays the matches below node, recording losers; returns the winner. */
+    private int play(int node) {
+        if (node >= k) return node - k;
+        int l = play(2 * node);
+        int r = play(2 * node + 1);
+        if (beats(l, r)) {
+            tree[node] = r;
+            return l;
+        }
+        tree[node] = l;
+        return r;
+    }
+
+    public boolean hasNext() {
+        return k > 0 && heads[tree[0]] != null;
+    }
+
+    public Tuple next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        int winner = tree[0];
+        Tuple t = heads[winner];
+        heads[winner] = advance(winner);
+        for (int node = (winner + k) / 2; node >= 1; node /= 2) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+        return t;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
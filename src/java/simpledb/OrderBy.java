@@ -1,9 +1,16 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Input that fits in the memory budget is sorted in memory. Larger input is
+ * sorted externally: each memory-sized run is sorted and written to a
+ * {@link SpillFile}, and the runs are merged through a {@link LoserTree},
+ * reading a page of each at a time. When there are more runs than pages of
+ * memory, groups of runs are first merged into longer runs.
  */
 public class OrderBy extends Operator {
 
@@ -16,6 +23,15 @@ public class OrderBy extends Operator {
     private Iterator<Tuple> it;
     private boolean asc;
 
+    /** Default number of tuples sorted in memory. */
+    public final static int SORT_BUFFER_SIZE = 20000;
+
+    private int memoryTuples = SORT_BUFFER_SIZE;
+    // sorted runs spilled to disk, in the order they were made; the last
+    // run, childTups, stays in memory
+    private ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private int runsMade = 0;
+
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
      * 
@@ -53,24 +69,114 @@ public class OrderBy extends Operator {
         return td;
     }
 
+    /**
+     * Sets the number of tuples the sort holds in memory. Larger input is
+     * sorted in runs spilled to disk.
+     */
+    public void setMemoryBudget(int tuples) {
+        this.memoryTuples = tuples;
+    }
+
+    /**
+     * @return the number of sorted runs the last open() wrote to disk,
+     *   counting those made by intermediate merges; 0 if it sorted in memory
+     */
+    public int numRuns() {
+        return runsMade;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        Comparator<Tuple> cmp = new TupleComparator(orderByField, asc);
+        childTups.clear();
+        dropRuns();
+        runsMade = 0;
+        // sort the tuples in runs of memoryTuples, spilling all but the last
+        try {
+            while (child.hasNext()) {
+                childTups.add((Tuple) child.next());
+                if (childTups.size() >= memoryTuples && child.hasNext()) {
+                    Collections.sort(childTups, cmp);
+                    runs.add(spill(childTups.iterator()));
+                    childTups.clear();
+                }
+            }
+            Collections.sort(childTups, cmp);
+            mergeRuns(cmp);
+        } catch (IOException e) {
+            throw new DbException("could not spill sort run: " + e.getMessage());
+        }
+        it = merge(cmp);
         super.open();
     }
 
+    /** Writes sorted tuples to a new run. */
+    private SpillFile spill(Iterator<Tuple> tuples) throws IOException {
+        SpillFile run = new SpillFile(td);
+        while (tuples.hasNext()) {
+            run.add(tuples.next());
+        }
+        run.finish();
+        runsMade++;
+        return run;
+    }
+
+    /**
+     * Merges the runs on disk, in passes over groups of consecutive runs,
+     * until each of them and the run in memory can have a page in memory at
+     * once.
+     */
+    private void mergeRuns(Comparator<Tuple> cmp) throws IOException {
+        int fanIn = Math.max(2, memoryTuples / HeapPage.getNumTuples(td));
+        while (runs.size() + 1 > fanIn) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                List<Iterator<Tuple>> streams = new ArrayList<Iterator<Tuple>>();
+                for (SpillFile run : group) {
+                    streams.add(run.iterator());
+                }
+                merged.add(spill(new LoserTree(streams, cmp)));
+                for (SpillFile run : group) {
+                    run.delete();
+                }
+            }
+            runs = merged;
+        }
+    }
+
+    /** @return the tuples of all the runs, in order */
+    private Iterator<Tuple> merge(Comparator<Tuple> cmp) {
+        if (runs.isEmpty()) return childTups.iterator();
+        List<Iterator<Tuple>> streams = new ArrayList<Iterator<Tuple>>();
+        for (SpillFile run : runs) {
+            streams.add(run.iterator());
+        }
+        streams.add(childTups.iterator());
+        return new LoserTree(streams, cmp);
+    }
+
+    private void dropRuns() {
+        for (SpillFile run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
     public void close() {
         super.close();
         it = null;
+        childTups.clear();
+        dropRuns();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        it = merge(new TupleComparator(orderByField, asc));
     }
 
     /**
@@ -98,26 +204,27 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /** Orders tuples on one field; also used by {@link TopN}. */
+    static class TupleComparator implements Comparator<Tuple> {
+        int field;
+        boolean asc;
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+        public TupleComparator(int field, boolean asc) {
+            this.field = field;
+            this.asc = asc;
+        }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
+        public int compare(Tuple o1, Tuple o2) {
+            Field t1 = (o1).getField(field);
+            Field t2 = (o2).getField(field);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                return 0;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return asc ? 1 : -1;
+            else
+                return asc ? -1 : 1;
+        }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
     }
-    
+
 }
@@ -56,4 +56,15 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Returns the log sequence number of this page: the offset in the log of
+     * the last UPDATE record written for it, or -1 if none was written since
+     * the page was read. The log must be on disk up to this record before
+     * the page is written back.
+     */
+    public long getLsn();
+
+    /** Stamps the page with the offset of the log record that covers it. */
+    public void setLsn(long lsn);
 }
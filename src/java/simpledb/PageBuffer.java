@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The bytes a HeapPage was read from, shared by the page, its before image
+ * and the tuples decoded from it. They are either a heap buffer or a frame
+ * of a {@link FrameArena}.
+ * <p>
+ * When the BufferPool lets go of a page kept in a frame, {@link #release()}
+ * copies the frame to the heap and gives it back to the arena at once.
+ * Whoever still holds the page or its tuples goes on reading the same bytes,
+ * from the copy. Reads of a frame and the copy synchronize on the buffer, so
+ * no read sees a frame that was handed out again.
+ */
+class PageBuffer {
+
+    // the bytes; they only change, once, when a frame is released, so
+    // only reads of a frame need the lock
+    private ByteBuffer bytes;
+    // the arena of the frame, or null for heap bytes
+    private final FrameArena arena;
+    private final int frame;
+    private boolean released;
+
+    /** Creates a buffer over heap bytes, which it never gives back. */
+    PageBuffer(ByteBuffer bytes) {
+        this(bytes, null, -1);
+    }
+
+    /** Creates a buffer over the given frame of an arena. */
+    PageBuffer(ByteBuffer bytes, FrameArena arena, int frame) {
+        this.bytes = bytes;
+        this.arena = arena;
+        this.frame = frame;
+    }
+
+    /** @return the number of bytes */
+    synchronized int capacity() {
+        return bytes.capacity();
+    }
+
+    /** @return whether the bytes are still in a frame of an arena */
+    synchronized boolean isFrame() {
+        return arena != null && !released;
+    }
+
+    /**
+     * @return a view of all the bytes, positioned at the start, for filling
+     *   a frame that nothing else refers to yet
+     * @see HeapFile#readPage(PageId, PageBuffer)
+     */
+    ByteBuffer view() {
+        ByteBuffer buf = bytes.duplicate();
+        buf.clear();
+        return buf;
+    }
+
+    /** @return the byte at the given offset */
+    byte get(int offset) {
+        if (arena == null) return bytes.get(offset);
+        synchronized (this) {
+            return bytes.get(offset);
+        }
+    }
+
+    /** Copies dst.length bytes, starting at the given offset, into dst. */
+    void get(int offset, byte[] dst) {
+        if (arena == null) {
+            copy(offset, dst);
+            return;
+        }
+        synchronized (this) {
+            copy(offset, dst);
+        }
+    }
+
+    private void copy(int offset, byte[] dst) {
+        ByteBuffer src = bytes.duplicate();
+        src.position(offset);
+        src.get(dst);
+    }
+
+    /** @return the field of the given type at the given offset */
+    Field parse(Type type, int offset) {
+        if (arena == null) return type.parse(bytes, offset);
+        synchronized (this) {
+            return type.parse(bytes, offset);
+        }
+    }
+
+    /**
+     * Moves the bytes of a frame to the heap and returns the frame to its
+     * arena. Does nothing for heap bytes or a frame released already.
+     */
+    void release() {
+        synchronized (this) {
+            if (arena == null || released) return;
+            ByteBuffer copy = ByteBuffer.allocate(bytes.capacity());
+            copy.put(view());
+            copy.clear();
+            bytes = copy;
+            released = true;
+        }
+        arena.free(frame);
+    }
+}
@@ -0,0 +1,173 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A PageCodec recreates pages of one type from the log. Each type of page
+ * that can appear in the log is registered with a small numeric tag, and a
+ * page id is logged as its tag, table id and page number, so reading a
+ * record back takes a table lookup rather than reflection on class names.
+ * <p>
+ * Codecs for HeapPage and the four B+ tree page types are registered when
+ * the class is loaded. A new type of page must register a codec of its own,
+ * with a tag not used yet, before its pages are logged.
+ *
+ * @see LogFile
+ */
+public abstract class PageCodec {
+
+    public static final int HEAP_PAGE = 1;
+    public static final int BTREE_ROOT_PTR_PAGE = 2;
+    public static final int BTREE_INTERNAL_PAGE = 3;
+    public static final int BTREE_LEAF_PAGE = 4;
+    public static final int BTREE_HEADER_PAGE = 5;
+
+    private static final int MAX_TAG = 127;
+
+    // read without locking by recovery threads; written only by register
+    private static final PageCodec[] byTag = new PageCodec[MAX_TAG + 1];
+    private static final Map<Class<? extends Page>, PageCodec> byClass =
+        new ConcurrentHashMap<Class<? extends Page>, PageCodec>();
+    private static final List<PageCodec> codecs = new CopyOnWriteArrayList<PageCodec>();
+
+    private final int tag;
+    private final Class<? extends Page> pageClass;
+
+    /**
+     * @param tag the number the codec's pages are logged under
+     * @param pageClass the class of the pages
+     */
+    protected PageCodec(int tag, Class<? extends Page> pageClass) {
+        if (tag <= 0 || tag > MAX_TAG) throw new IllegalArgumentException("tag out of range: " + tag);
+        this.tag = tag;
+        this.pageClass = pageClass;
+    }
+
+    /** @return the number the codec's pages are logged under */
+    public int getTag() {
+        return tag;
+    }
+
+    /** @return whether pages with the given id are of this codec's type */
+    public abstract boolean handles(PageId pid);
+
+    /** @return the id of the given page of the given table */
+    public abstract PageId makeId(int tableId, int pgNo);
+
+    /** @return a page of this codec's type with the given id and bytes */
+    public abstract Page makePage(PageId pid, byte[] data) throws IOException;
+
+    /**
+     * Adds a codec to the table.
+     *
+     * @throws IllegalArgumentException if its tag or page class is taken
+     */
+    public static synchronized void register(PageCodec codec) {
+        if (byTag[codec.tag] != null)
+            throw new IllegalArgumentException("page tag " + codec.tag + " is already registered");
+        if (byClass.containsKey(codec.pageClass))
+            throw new IllegalArgumentException(codec.pageClass.getName() + " is already registered");
+        byTag[codec.tag] = codec;
+        byClass.put(codec.pageClass, codec);
+        codecs.add(codec);
+    }
+
+    /** @return the codec for the given tag */
+    public static PageCodec forTag(int tag) throws IOException {
+        PageCodec codec = tag > 0 && tag <= MAX_TAG ? byTag[tag] : null;
+        if (codec == null) throw new IOException("unknown page tag " + tag);
+        return codec;
+    }
+
+    /**
+     * @return the codec for the type of the given page, or for its id if the
+     *   page is of a subclass of a registered type
+     */
+    public static PageCodec forPage(Page page) {
+        PageCodec codec = byClass.get(page.getClass());
+        return codec != null ? codec : forId(page.getId());
+    }
+
+    /** @return the codec for pages with the given id */
+    public static PageCodec forId(PageId pid) {
+        for (PageCodec codec : codecs) {
+            if (codec.handles(pid)) return codec;
+        }
+        throw new IllegalArgumentException("no page codec for " + pid);
+    }
+
+    /** Writes a page id of this codec's type as its tag, table id and page number. */
+    public void writeId(DataOutput out, PageId pid) throws IOException {
+        out.writeByte(tag);
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
+    }
+
+    /** Reads a page id written by {@link #writeId}. */
+    public static PageId readId(DataInput in) throws IOException {
+        PageCodec codec = forTag(in.readByte());
+        int tableId = in.readInt();
+        return codec.makeId(tableId, in.readInt());
+    }
+
+    /** Codec for the pages of one category of a B+ tree file. */
+    private static abstract class BTreeCodec extends PageCodec {
+        private final int category;
+
+        BTreeCodec(int tag, Class<? extends Page> pageClass, int category) {
+            super(tag, pageClass);
+            this.category = category;
+        }
+
+        public boolean handles(PageId pid) {
+            return pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() == category;
+        }
+
+        public PageId makeId(int tableId, int pgNo) {
+            return new BTreePageId(tableId, pgNo, category);
+        }
+
+        /** @return the key field of the file the page belongs to */
+        int keyField(PageId pid) {
+            return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+        }
+    }
+
+    static {
+        register(new PageCodec(HEAP_PAGE, HeapPage.class) {
+            public boolean handles(PageId pid) {
+                return pid instanceof HeapPageId;
+            }
+
+            public PageId makeId(int tableId, int pgNo) {
+                return new HeapPageId(tableId, pgNo);
+            }
+
+            public Page makePage(PageId pid, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        });
+        register(new BTreeCodec(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class, BTreePageId.ROOT_PTR) {
+            public Page makePage(PageId pid, byte[] data) throws IOException {
+                return new BTreeRootPtrPage((BTreePageId) pid, data);
+            }
+        });
+        register(new BTreeCodec(BTREE_INTERNAL_PAGE, BTreeInternalPage.class, BTreePageId.INTERNAL) {
+            public Page makePage(PageId pid, byte[] data) throws IOException {
+                return new BTreeInternalPage((BTreePageId) pid, data, keyField(pid));
+            }
+        });
+        register(new BTreeCodec(BTREE_LEAF_PAGE, BTreeLeafPage.class, BTreePageId.LEAF) {
+            public Page makePage(PageId pid, byte[] data) throws IOException {
+                return new BTreeLeafPage((BTreePageId) pid, data, keyField(pid));
+            }
+        });
+        register(new BTreeCodec(BTREE_HEADER_PAGE, BTreeHeaderPage.class, BTreePageId.HEADER) {
+            public Page makePage(PageId pid, byte[] data) throws IOException {
+                return new BTreeHeaderPage((BTreePageId) pid, data);
+            }
+        });
+    }
+}
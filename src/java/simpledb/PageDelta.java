@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A PageDelta is the change between two images of a page, kept as the runs
+ * of bytes that differ together with their contents in both images. An
+ * insert into a HeapPage, for instance, changes one header byte and the
+ * bytes of one slot, so its delta is two short runs rather than two whole
+ * pages; moving entries on a B+ tree page changes the runs of the slots
+ * involved.
+ * <p>
+ * Applying a delta sets bytes to the values it carries rather than
+ * adjusting them, so redoing or undoing it more than once has the same
+ * effect as doing it once. Recovery can therefore replay deltas onto a
+ * page without knowing which of them already reached the disk.
+ *
+ * @see LogFile#logWrite(TransactionId, Page, Page)
+ */
+public class PageDelta {
+
+    /**
+     * Differing runs closer together than this many bytes are logged as one
+     * run, since each run costs two ints of offset and length, and bridging
+     * a gap of n bytes costs 2n.
+     */
+    static final int MERGE_GAP = 4;
+
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int[] offsets, byte[][] before, byte[][] after) {
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Computes the delta that turns one image of a page into another.
+     *
+     * @param oldData the page before the change
+     * @param newData the page after the change; must be as long as oldData
+     */
+    public static PageDelta diff(byte[] oldData, byte[] newData) {
+        if (oldData.length != newData.length)
+            throw new IllegalArgumentException("page images differ in size");
+        List<int[]> runs = new ArrayList<>();
+        int i = 0;
+        while (i < newData.length) {
+            if (oldData[i] == newData[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the run while the next difference is close enough
+            for (int j = end; j < newData.length && j - end < MERGE_GAP; j++) {
+                if (oldData[j] != newData[j]) end = j + 1;
+            }
+            runs.add(new int[]{start, end});
+            i = end;
+        }
+
+        int[] offsets = new int[runs.size()];
+        byte[][] before = new byte[runs.size()][];
+        byte[][] after = new byte[runs.size()][];
+        for (int r = 0; r < runs.size(); r++) {
+            int start = runs.get(r)[0], end = runs.get(r)[1];
+            offsets[r] = start;
+            before[r] = Arrays.copyOfRange(oldData, start, end);
+            after[r] = Arrays.copyOfRange(newData, start, end);
+        }
+        return new PageDelta(offsets, before, after);
+    }
+
+    /** @return the number of runs of changed bytes */
+    public int numRuns() {
+        return offsets.length;
+    }
+
+    /** @return the number of bytes the delta changes */
+    public int changedBytes() {
+        int n = 0;
+        for (byte[] run : after) n += run.length;
+        return n;
+    }
+
+    /** Applies the change to a copy of the page held in data. */
+    public void redo(byte[] data) {
+        apply(data, after);
+    }
+
+    /** Reverts the change on a copy of the page held in data. */
+    public void undo(byte[] data) {
+        apply(data, before);
+    }
+
+    private void apply(byte[] data, byte[][] runs) {
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(runs[r], 0, data, offsets[r], runs[r].length);
+        }
+    }
+
+    /**
+     * Writes the delta as an int count of runs, followed for each run by
+     * its int offset, its int length, and its bytes before and after.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /**
+     * Reads a delta written by {@link #writeTo(DataOutput)}. The counts and
+     * lengths read are checked against the page size before anything is
+     * allocated for them, since at the torn end of a log they may be
+     * garbage.
+     *
+     * @param pageSize the size of the page the delta changes
+     * @throws StreamCorruptedException if a count, offset or length cannot
+     *   belong to a delta of a page of that size
+     */
+    public static PageDelta readFrom(DataInput in, int pageSize) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > pageSize)
+            throw new StreamCorruptedException("bad number of runs " + n);
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        // runs do not overlap, so together they change at most a page
+        int total = 0;
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            if (offsets[r] < 0 || len < 0 || len > pageSize - offsets[r]
+                    || len > pageSize - total)
+                throw new StreamCorruptedException("bad run of " + len + " bytes at " + offsets[r]);
+            total += len;
+            before[r] = new byte[len];
+            in.readFully(before[r]);
+            after[r] = new byte[len];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(offsets, before, after);
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * PageWriter is the background thread of a BufferPool running without
+ * FORCE. Committing transactions only log their pages and leave them in the
+ * pool; every so often the writer wakes up and writes back a batch of those
+ * pages, so commits wait for the log alone and the pages reach their files
+ * in large, mostly sequential writes.
+ *
+ * @see BufferPool#setForce(boolean)
+ */
+public class PageWriter extends Thread {
+
+    /** Default time between rounds of writing, in milliseconds. */
+    public static final long DEFAULT_INTERVAL_MILLIS = 50;
+
+    /** Default largest number of pages written in one round. */
+    public static final int DEFAULT_BATCH_PAGES = 64;
+
+    private final BufferPool pool;
+    private final long intervalMillis;
+    private final int batchPages;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param pool the pool whose pages to write
+     * @param intervalMillis the time between rounds of writing
+     * @param batchPages the largest number of pages written in one round
+     */
+    public PageWriter(BufferPool pool, long intervalMillis, int batchPages) {
+        super("PageWriter");
+        this.pool = pool;
+        this.intervalMillis = intervalMillis;
+        this.batchPages = batchPages;
+        setDaemon(true);
+    }
+
+    public void run() {
+        while (!stopped) {
+            synchronized (this) {
+                try {
+                    wait(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            // stop with a pool the database no longer uses
+            if (stopped || Database.getBufferPool() != pool) return;
+            try {
+                pool.writeLoggedPages(batchPages);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Starts a round of writing now rather than at the end of the interval. */
+    public synchronized void wakeUp() {
+        notify();
+    }
+
+    /** Stops the thread and waits for it to finish its current round. */
+    public void shutdown() {
+        stopped = true;
+        wakeUp();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -4,6 +4,7 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.*;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -273,12 +274,72 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    /**
+     * A LIMIT clause at the very end of a statement. ZQL does not know
+     * LIMIT, so it is taken off the statement before ZQL parses the rest.
+     */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)\\s*(?=;?\\s*\\z)", Pattern.CASE_INSENSITIVE);
+
+    // the LIMIT of the statement being processed, or -1 if it has none
+    private int limit = -1;
+
+    /**
+     * Reads one statement from the stream: up to and including the first
+     * ';' that is not inside a quoted string, or to the end of the stream.
+     * Nothing past the statement is read.
+     */
+    private static String readStatement(InputStream is) throws IOException {
+        ByteArrayOutputStream statement = new ByteArrayOutputStream();
+        int quote = 0;
+        for (int c; (c = is.read()) >= 0;) {
+            statement.write(c);
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ';') {
+                break;
+            }
+        }
+        return statement.toString("UTF-8");
+    }
+
+    /**
+     * Takes the LIMIT clause, if any, off the end of a statement read by
+     * {@link #readStatement}, and remembers its count for the query the rest
+     * of the statement parses to.
+     *
+     * @return the statement without its LIMIT clause
+     */
+    private String stripLimit(String s) throws simpledb.ParsingException {
+        limit = -1;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return s;
+        try {
+            limit = Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT " + m.group(1)
+                    + " is too large");
+        }
+        return s.substring(0, m.start()) + s.substring(m.end());
+    }
+
+    /** Adds the LIMIT of the statement being processed, if any, to a plan. */
+    private void applyLimit(LogicalPlan lp) throws simpledb.ParsingException {
+        if (limit >= 0)
+            lp.addLimit(limit);
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        applyLimit(lp);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -387,6 +448,7 @@ public class Parser {
         } else {
             ZQuery zq = (ZQuery) s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            applyLimit(lp);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -465,12 +527,15 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
-        ZqlParser p = new ZqlParser(bis);
         try {
+            String text = stripLimit(readStatement(new ByteArrayInputStream(
+                    s.getBytes("UTF-8"))));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    text.getBytes("UTF-8")));
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                applyLimit(lp);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -478,6 +543,8 @@ public class Parser {
                     "Invalid SQL expression: \n \t " + e);
         } catch (IOException e) {
             throw new simpledb.ParsingException(e);
+        } finally {
+            limit = -1;
         }
 
         throw new simpledb.ParsingException(
@@ -503,8 +570,15 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            String text = stripLimit(readStatement(is));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    text.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
+            if (limit >= 0
+                    && !(s instanceof ZQuery || s instanceof ZInsert
+                            && ((ZInsert) s).getQuery() != null))
+                throw new simpledb.ParsingException(
+                        "LIMIT is only supported on queries");
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -575,13 +649,15 @@ public class Parser {
             System.out.println("Invalid SQL expression: \n \t " + e);
         } catch (Zql.TokenMgrError e) {
             System.out.println("Invalid SQL expression: \n \t " + e);
+        } finally {
+            limit = -1;
         }
     }
 
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit" };
 
     public static void main(String argv[]) throws IOException {
 
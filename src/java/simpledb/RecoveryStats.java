@@ -0,0 +1,29 @@
+package simpledb;
+
+/** Class returned by {@link LogFile#getRecoveryStats} describing the work
+    done by the last call to {@link LogFile#recover}, for sizing the
+    interval between checkpoints.
+*/
+public class RecoveryStats {
+    /** The number of log records read by the analysis pass */
+    public long recordsScanned;
+    /** The number of UPDATE records redone */
+    public long recordsRedone;
+    /** The number of UPDATE records of unfinished transactions undone */
+    public long recordsUndone;
+    /** The number of distinct pages redo and undo were applied to */
+    public int pagesReplayed;
+    /** The number of transactions that had not finished at the crash */
+    public int losers;
+    /** The number of threads the pages were replayed on */
+    public int threads;
+    /** Wall clock time of the whole recovery, in milliseconds */
+    public long millis;
+
+    public String toString() {
+        return "recovered in " + millis + " ms: " + recordsScanned + " records scanned, "
+            + recordsRedone + " redone and " + recordsUndone + " undone on "
+            + pagesReplayed + " pages using " + threads + " threads, "
+            + losers + " transactions rolled back";
+    }
+}
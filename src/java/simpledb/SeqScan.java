@@ -46,7 +46,7 @@ public class SeqScan implements OpIterator {
      *       be the actual name of the table in the catalog of the database
      * */
     public String getTableName() {
-        return null;
+        return Database.getCatalog().getTableName(tableid);
     }
 
     /**
@@ -100,11 +100,9 @@ public class SeqScan implements OpIterator {
         TupleDesc td = Database.getCatalog().getDatabaseFile(tableid).getTupleDesc();
         Type[] typeAr = new Type[td.numFields()];
         String[] fieldAr = new String[td.numFields()];
-        for (String s: fieldAr) {
-            s = getAlias() + "." + s;
-        }
         for (int i = 0; i < td.numFields(); i ++) {
             typeAr[i] = td.getFieldType(i);
+            fieldAr[i] = getAlias() + "." + td.getFieldName(i);
         }
         return new TupleDesc(typeAr, fieldAr);
     }
@@ -0,0 +1,162 @@
+package simpledb;
+
+/**
+ * SortAggregate is an {@link Aggregate} over input whose tuples arrive
+ * grouped: all the tuples of a group come one after another, as they do
+ * from a scan of a B+ tree keyed on the group field or from an ORDER BY on
+ * it. It keeps the running values of the current group only and returns
+ * the group as soon as a tuple of the next one arrives, with no hashing and
+ * constant memory. Its results are those of an Aggregate, in input order.
+ *
+ * @see #isOrderedOn(OpIterator, int)
+ */
+public class SortAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    private TupleDesc resultTd;
+    // the first tuple of the group after the current one, if read
+    private Tuple lookahead = null;
+    // running values of the group being read
+    private Field group;
+    private int count;
+    private long sum;
+    private int min;
+    private int max;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples, grouped on gfield.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     * @throws IllegalArgumentException if afield is a string and aop is not
+     *            COUNT
+     */
+    public SortAggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        super(child, afield, gfield, aop);
+        TupleDesc td = child.getTupleDesc();
+        if (td.getFieldType(afield) != Type.INT_TYPE && aop != Aggregator.Op.COUNT)
+            throw new IllegalArgumentException("only COUNT is supported on strings");
+        // the same tuples as from an Aggregator's iterator
+        if (gfield != Aggregator.NO_GROUPING)
+            resultTd = new TupleDesc(new Type[] { td.getFieldType(gfield), Type.INT_TYPE });
+        else
+            resultTd = new TupleDesc(new Type[] { Type.INT_TYPE });
+    }
+
+    /**
+     * @return whether the tuples of child come grouped on a field: child
+     *   is ordered on it, or filters something that is
+     */
+    public static boolean isOrderedOn(OpIterator child, int field) {
+        if (child instanceof OrderBy)
+            return ((OrderBy) child).getOrderByField() == field;
+        if (child instanceof TopN)
+            return ((TopN) child).getOrderByField() == field;
+        if (child instanceof Filter || child instanceof Limit)
+            return isOrderedOn(((Operator) child).getChildren()[0], field);
+        // a B+ tree is scanned in the order of its key
+        String table = null;
+        if (child instanceof SeqScan)
+            table = ((SeqScan) child).getTableName();
+        else if (child instanceof BTreeScan)
+            table = ((BTreeScan) child).getTableName();
+        if (table == null)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(table));
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    protected void build() throws DbException, TransactionAbortedException {
+        lookahead = null;
+    }
+
+    private void start(Tuple t) {
+        group = groupField() != Aggregator.NO_GROUPING ? t.getField(groupField()) : null;
+        count = 0;
+        sum = 0;
+        add(t);
+    }
+
+    private void add(Tuple t) {
+        if (aggregateOp() == Aggregator.Op.COUNT) {
+            count++;
+            return;
+        }
+        int v = ((IntField) t.getField(aggregateField())).getValue();
+        if (count == 0) {
+            min = v;
+            max = v;
+        } else {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        count++;
+        sum += v;
+    }
+
+    /** @return the aggregate value of the group read */
+    private int aggregateValue() {
+        switch (aggregateOp()) {
+        case MIN:
+            return min;
+        case MAX:
+            return max;
+        case SUM:
+            return (int) sum;
+        case AVG:
+            return (int) (sum / count);
+        case COUNT:
+            return count;
+        default:
+            // SUM_COUNT and SC_AVG are not implemented
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the tuples of the next group and returns its aggregate, in the
+     * form {@link Aggregate#fetchNext()} does.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        OpIterator child = getChildren()[0];
+        Tuple t = lookahead;
+        lookahead = null;
+        if (t == null) {
+            if (!child.hasNext()) return null;
+            t = child.next();
+        }
+        start(t);
+        while (child.hasNext()) {
+            Tuple next = child.next();
+            if (group != null && !group.equals(next.getField(groupField()))) {
+                lookahead = next;
+                break;
+            }
+            add(next);
+        }
+
+        Tuple result = new Tuple(resultTd);
+        if (group != null) {
+            result.setField(0, group);
+            result.setField(1, new IntField(aggregateValue()));
+        } else {
+            result.setField(0, new IntField(aggregateValue()));
+        }
+        return result;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        getChildren()[0].rewind();
+        build();
+    }
+
+}
@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A SpillFile is a temporary file of tuples, written by an operator whose
+ * input does not fit in memory and read back later. Tuples are stored in
+ * the format of {@link HeapPage}s, filled slot by slot in the order they are
+ * added, and come back in that order.
+ * <p>
+ * A SpillFile belongs to the one operator that made it, so its pages are
+ * written and read directly rather than through the BufferPool: they take
+ * no locks, are not logged and do not displace cached pages. The file is
+ * not in the catalog, and the operator removes it with {@link #delete()}
+ * once it is done with it.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private final FileChannel channel;
+    // page ids only need to be distinct from those of other spill files
+    private final int id;
+    private final int slots;
+    private final int headerSize;
+
+    // the page being filled
+    private final byte[] page;
+    private final ByteArrayOutputStream slotBytes;
+    private int used = 0;
+
+    private int numPages = 0;
+    private long numTuples = 0;
+
+    /** Creates an empty spill file for tuples of the given type. */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".dat");
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.id = file.getAbsoluteFile().hashCode();
+        this.slots = HeapPage.getNumTuples(td);
+        this.headerSize = HeapPage.getHeaderSize(td);
+        this.page = new byte[BufferPool.getPageSize()];
+        this.slotBytes = new ByteArrayOutputStream(slots * td.getSize());
+    }
+
+    /** @return the type of the tuples in the file */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples added */
+    public long numTuples() {
+        return numTuples;
+    }
+
+    /** @return the number of pages written, counting a partly filled last page */
+    public int numPages() {
+        return numPages + (used > 0 ? 1 : 0);
+    }
+
+    /** Appends a tuple to the file. */
+    public void add(Tuple t) throws IOException {
+        DataOutputStream dos = new DataOutputStream(slotBytes);
+        for (int i = 0; i < td.numFields(); i++) {
+            t.getField(i).serialize(dos);
+        }
+        used++;
+        numTuples++;
+        if (used == slots) writePage();
+    }
+
+    /** Writes the page being filled, with a header marking its used slots. */
+    private void writePage() throws IOException {
+        Arrays.fill(page, (byte) 0);
+        for (int i = 0; i < used; i++) {
+            page[i / 8] |= 1 << (i % 8);
+        }
+        byte[] body = slotBytes.toByteArray();
+        System.arraycopy(body, 0, page, headerSize, body.length);
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        long offset = (long) numPages * page.length;
+        while (buf.hasRemaining()) {
+            channel.write(buf, offset + buf.position());
+        }
+        numPages++;
+        slotBytes.reset();
+        used = 0;
+    }
+
+    /**
+     * Writes out the last, partly filled page. Tuples must not be added
+     * after this.
+     */
+    public void finish() throws IOException {
+        if (used > 0) writePage();
+    }
+
+    /**
+     * @return an iterator over the tuples of the file in the order they were
+     *   added; the file must be finished
+     */
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            private int pgNo = 0;
+            private Iterator<Tuple> tuples = Collections.<Tuple>emptyIterator();
+
+            public boolean hasNext() {
+                while (!tuples.hasNext()) {
+                    if (pgNo >= numPages) return false;
+                    tuples = readPage(pgNo++).iterator();
+                }
+                return true;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return tuples.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private HeapPage readPage(int pgNo) {
+        ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+        long offset = (long) pgNo * buf.capacity();
+        try {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0)
+                    throw new IOException("spill file ends in page " + pgNo);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        buf.clear();
+        return new HeapPage(new HeapPageId(id, pgNo), buf, td);
+    }
+
+    /** Closes and deletes the file. */
+    public void delete() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        file.delete();
+    }
+}
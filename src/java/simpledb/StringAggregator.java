@@ -4,6 +4,9 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
+ * <p>
+ * Each group keeps only its running count, so memory grows with the number
+ * of groups, not the number of tuples merged.
  */
 public class StringAggregator implements Aggregator {
 
@@ -13,8 +16,9 @@ public class StringAggregator implements Aggregator {
     private Type gbfieldtype;
     private int afield;
     private Op what;
-    private Map<Field, List<Tuple>> map;
-    private List<Tuple> list;
+    // group value (null without grouping) to the index of its count
+    private Map<Field, Integer> map;
+    private int[] counts = new int[16];
 
     /**
      * Aggregate constructor
@@ -33,7 +37,6 @@ public class StringAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.what = what;
         map = new HashMap<>();
-        list = new ArrayList<>();
     }
 
     /**
@@ -42,14 +45,22 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        if (gbfield != Aggregator.NO_GROUPING) {
-            if (!map.containsKey(tup.getField(gbfield))) {
-                map.put(tup.getField(gbfield), new ArrayList<>());
-            }
-            map.get(tup.getField(gbfield)).add(tup);
-        } else {
-            list.add(tup);
+        Field group = gbfield != Aggregator.NO_GROUPING ? tup.getField(gbfield) : null;
+        Integer slot = map.get(group);
+        if (slot == null) {
+            slot = map.size();
+            if (slot == counts.length) counts = Arrays.copyOf(counts, slot * 2);
+            map.put(group, slot);
         }
+        counts[slot]++;
+    }
+
+    public int numGroups() {
+        return map.size();
+    }
+
+    public boolean hasGroup(Field group) {
+        return map.containsKey(group);
     }
 
     /**
@@ -65,8 +76,7 @@ public class StringAggregator implements Aggregator {
         return new OpIterator() {
             private boolean open = false;
             private TupleDesc tupleDesc;
-            private Iterator<Map.Entry<Field, List<Tuple>>> entries;
-            private Iterator<Tuple> iterator;
+            private Iterator<Map.Entry<Field, Integer>> entries;
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
@@ -76,46 +86,35 @@ public class StringAggregator implements Aggregator {
                     types = new Type[2];
                     types[0] = gbfieldtype;
                     types[1] = Type.INT_TYPE;
-                    entries = map.entrySet().iterator();
                 } else {
                     types = new Type[1];
                     types[0] = Type.INT_TYPE;
-                    iterator = list.iterator();
                 }
+                entries = map.entrySet().iterator();
                 tupleDesc = new TupleDesc(types);
             }
 
             @Override
             public boolean hasNext() throws DbException, TransactionAbortedException {
                 if (open == false) return false;
-                if (gbfield != Aggregator.NO_GROUPING)
-                    return entries.hasNext();
-                else
-                    return iterator.hasNext();
+                return entries.hasNext();
             }
 
             @Override
             public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
                 if (open == false) return null;
-                int value = 0, k = -1;
                 Tuple tuple = new Tuple(tupleDesc);
+                Map.Entry<Field, Integer> entry = null;
+                if (entries.hasNext())
+                    entry = entries.next();
+                else
+                    throw new NoSuchElementException();
+                int value = counts[entry.getValue()];
                 if (gbfield != Aggregator.NO_GROUPING) {
-                    Map.Entry<Field, List<Tuple>> entry = null;
-                    if (entries.hasNext())
-                        entry = entries.next();
-                    else
-                        throw new NoSuchElementException();
-                    List<Tuple> tupleList = entry.getValue();
-                    value = tupleList.size();
                     tuple.setField(0, entry.getKey());
                     tuple.setField(1, new IntField(value));
                 } else {
-                    Tuple tp = null;
-                    if (iterator.hasNext())
-                        tp = iterator.next();
-                    else
-                        throw new NoSuchElementException();
-                    tuple.setField(0,  ((IntField) tp.getField(afield)));
+                    tuple.setField(0, new IntField(value));
                 }
                 return tuple;
             }
@@ -123,7 +122,6 @@ public class StringAggregator implements Aggregator {
             @Override
             public void rewind() throws DbException, TransactionAbortedException {
                 entries = map.entrySet().iterator();
-                iterator = list.iterator();
             }
 
             @Override
@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements a relational ORDER BY followed by a
+ * LIMIT: it returns the first n tuples of its child in the order of one
+ * field. Rather than sorting all of its input, it keeps the best n tuples
+ * seen so far in a bounded priority queue whose head is the worst of them,
+ * so it needs memory for n tuples and about log(n) comparisons per input
+ * tuple. Tuples that compare equal come out in input order, as from
+ * {@link OrderBy}.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private TupleDesc td;
+    private int orderByField;
+    private String orderByFieldName;
+    private boolean asc;
+    private int limit;
+    private ArrayList<Tuple> topTups = new ArrayList<Tuple>();
+    private Iterator<Tuple> it;
+
+    /** A tuple and its position in the input, which breaks ties. */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, OpIterator child) {
+        this.child = child;
+        td = child.getTupleDesc();
+        this.orderByField = orderbyField;
+        this.orderByFieldName = td.getFieldName(orderbyField);
+        this.asc = asc;
+        this.limit = limit;
+    }
+
+    public boolean isASC() {
+        return this.asc;
+    }
+
+    public int getOrderByField() {
+        return this.orderByField;
+    }
+
+    public String getOrderFieldName() {
+        return this.orderByFieldName;
+    }
+
+    /** @return the largest number of tuples returned */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final Comparator<Tuple> cmp = new OrderBy.TupleComparator(orderByField, asc);
+        // the head is the entry that goes last
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, limit),
+                new Comparator<Entry>() {
+                    public int compare(Entry a, Entry b) {
+                        int c = cmp.compare(b.t, a.t);
+                        return c != 0 ? c : Long.compare(b.seq, a.seq);
+                    }
+                });
+        long seq = 0;
+        while (limit > 0 && child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(new Entry(t, seq++));
+            } else if (cmp.compare(t, heap.peek().t) < 0) {
+                // a later tuple that ties with the head goes after it
+                heap.poll();
+                heap.add(new Entry(t, seq++));
+            }
+        }
+        Tuple[] top = new Tuple[heap.size()];
+        for (int i = top.length - 1; i >= 0; i--) {
+            top[i] = heap.poll().t;
+        }
+        topTups = new ArrayList<Tuple>(Arrays.asList(top));
+        it = topTups.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        it = null;
+        topTups.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = topTups.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the first tuples of the
+     * child operator in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        } else
+            return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -1,7 +1,7 @@
 package simpledb;
 
-import com.sun.org.apache.regexp.internal.RE;
-
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -21,6 +21,10 @@ public class Tuple implements Serializable {
     private Field[] fields;
     private RecordId recordId;
 
+    // the serialized tuple its fields are decoded from on first access, or null
+    private transient PageBuffer data;
+    private int offset;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -36,6 +40,24 @@ public class Tuple implements Serializable {
         fields = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple whose fields are read, one at a time and only when they
+     * are first asked for, from a serialized tuple in the given buffer. The
+     * bytes must not change for as long as the tuple is in use.
+     *
+     * @param td
+     *            the schema of this tuple.
+     * @param data
+     *            the buffer holding the serialized tuple
+     * @param offset
+     *            the offset of the tuple in the buffer
+     */
+    Tuple(TupleDesc td, PageBuffer data, int offset) {
+        this(td);
+        this.data = data;
+        this.offset = offset;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -85,7 +107,12 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fields[i];
+        Field f = fields[i];
+        if (f == null && data != null) {
+            f = data.parse(tupleDesc.getFieldType(i), offset + tupleDesc.getOffset(i));
+            fields[i] = f;
+        }
+        return f;
     }
 
     /**
@@ -99,8 +126,8 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
         String s = "";
-        for (Field field: fields) {
-            s += field.toString() + " ";
+        for (int i = 0; i < fields.length; i ++) {
+            s += getField(i).toString() + " ";
         }
         return s;
         //throw new UnsupportedOperationException("Implement this");
@@ -127,11 +154,19 @@ public class Tuple implements Serializable {
             public Field next() {
                 if (!hasNext()) return null;
                 num ++;
-                return fields[num - 1];
+                return getField(num - 1);
             }
         };
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // the buffer is not written, so decode whatever is left in it first
+        for (int i = 0; i < fields.length; i ++) {
+            getField(i);
+        }
+        out.defaultWriteObject();
+    }
+
     /**
      * reset the TupleDesc of this tuple (only affecting the TupleDesc)
      * */
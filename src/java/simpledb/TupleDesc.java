@@ -37,6 +37,9 @@ public class TupleDesc implements Serializable {
 
     private List<TDItem> tdItemList = new ArrayList<TDItem>();
 
+    // byte offset of each field in a serialized tuple, computed on first use
+    private transient int[] offsets;
+
 
     /**
      * @return
@@ -165,6 +168,24 @@ public class TupleDesc implements Serializable {
         return size;
     }
 
+    /**
+     * @return the offset (in bytes) of the ith field in a serialized tuple
+     *         of this TupleDesc.
+     * @param i
+     *            index of the field. It must be a valid index.
+     */
+    public int getOffset(int i) {
+        int[] offs = offsets;
+        if (offs == null) {
+            offs = new int[numFields()];
+            for (int j = 1; j < offs.length; j ++) {
+                offs[j] = offs[j - 1] + getFieldType(j - 1).getLen();
+            }
+            offsets = offs;
+        }
+        return offs[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +48,17 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = buf.getInt(offset);
+            if (buf.hasArray()) {
+                return new StringField(new String(buf.array(), buf.arrayOffset() + offset + 4, strLen), STRING_LEN);
+            }
+            byte bs[] = new byte[strLen];
+            for (int i = 0; i < strLen; i++) bs[i] = buf.get(offset + 4 + i);
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +77,13 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read in place from the specified buffer, at an absolute offset. The
+   *   buffer's position is not changed.
+   * @param buf The buffer to read from
+   * @param offset The offset of the field in the buffer
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
 }
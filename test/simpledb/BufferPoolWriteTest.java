@@ -48,6 +48,32 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class that reads other pages while it changes the first one, as an
+    // insert into a file that has to look for free space would
+    class HeapFileWandering extends HeapFile {
+
+        Page first;
+        Page firstAgain;
+
+        public HeapFileWandering(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+                throws DbException, IOException, TransactionAbortedException {
+            BufferPool pool = Database.getBufferPool();
+            first = pool.getPage(tid, new HeapPageId(getId(), 0), Permissions.READ_WRITE);
+            for (int i = 1; i < numPages(); i++) {
+                pool.getPage(tid, new HeapPageId(getId(), i), Permissions.READ_ONLY);
+            }
+            firstAgain = pool.getPage(tid, new HeapPageId(getId(), 0), Permissions.READ_WRITE);
+            ArrayList<Page> dirtypages = new ArrayList<Page>();
+            dirtypages.add(first);
+            return dirtypages;
+        }
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -133,6 +159,21 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A page that an insert fetched for writing stays in the pool until the
+     * insert marks it dirty, however many other pages the insert reads.
+     */
+    @Test public void pinPagesDuringInsert() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*3, null, null);
+        HeapFileWandering hfw = new HeapFileWandering(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(hfw, SystemTestUtil.getUUID());
+        Database.resetBufferPool(2);
+
+        Database.getBufferPool().insertTuple(tid, hfw.getId(), Utility.getHeapTuple(1, 2));
+        assertSame(hfw.first, hfw.firstAgain);
+        assertEquals(tid, hfw.first.isDirty());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,93 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferRingTest extends SimpleDbTestBase {
+
+    private static final int BUFFER_PAGES = 16;
+
+    /**
+     * Unit test for BufferPool.newScanRing()
+     */
+    @Test public void ringSize() {
+        BufferPool bp = new BufferPool(BUFFER_PAGES);
+        assertNull(bp.newScanRing(BUFFER_PAGES));
+        assertEquals(2, bp.newScanRing(BUFFER_PAGES + 1).size());
+        assertEquals(BufferPool.MAX_SCAN_RING_PAGES, new BufferPool(1000).newScanRing(1001).size());
+        assertEquals(1, new BufferPool(4).newScanRing(5).size());
+    }
+
+    /**
+     * A sequential scan over a table much larger than the pool must not
+     * evict the pages other transactions are using.
+     */
+    @Test public void scanKeepsWorkingSet() throws Exception {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES);
+        TransactionId tid = new TransactionId();
+
+        for (int i = 0; i < hot.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(504 * 40, count);
+
+        bp.resetStats();
+        for (int i = 0; i < hot.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(hot.numPages(), bp.getHitCount());
+        assertEquals(0, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pages that are hit outside the ring are no longer recycled by it.
+     */
+    @Test public void sharedPagesLeaveRing() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES);
+        TransactionId tid = new TransactionId();
+        BufferRing ring = bp.newScanRing(big.numPages());
+        assertEquals(2, ring.size());
+
+        HeapPageId first = new HeapPageId(big.getId(), 0);
+        bp.getPage(tid, first, Permissions.READ_ONLY, ring);
+        bp.getPage(tid, first, Permissions.READ_ONLY);
+        for (int i = 1; i < big.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY, ring);
+        }
+
+        bp.resetStats();
+        bp.getPage(tid, first, Permissions.READ_ONLY);
+        assertEquals(1, bp.getHitCount());
+        // only the last two pages of the scan are still cached
+        bp.getPage(tid, new HeapPageId(big.getId(), big.numPages() - 3), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(big.getId(), big.numPages() - 2), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(big.getId(), big.numPages() - 1), Permissions.READ_ONLY);
+        assertEquals(3, bp.getHitCount());
+        assertEquals(1, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
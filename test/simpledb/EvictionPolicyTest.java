@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final EvictionPolicy.Filter ANY = new EvictionPolicy.Filter() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(0, pgNo);
+    }
+
+    private static EvictionPolicy.Filter allBut(final PageId pinned) {
+        return new EvictionPolicy.Filter() {
+            public boolean canEvict(PageId pid) {
+                return !pid.equals(pinned);
+            }
+        };
+    }
+
+    /**
+     * LRU evicts the page that was used least recently.
+     */
+    @Test public void lru() {
+        EvictionPolicy policy = new LRUEvictionPolicy();
+        policy.pageAdded(pid(1));
+        policy.pageAdded(pid(2));
+        policy.pageAdded(pid(3));
+        policy.pageAccessed(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(ANY));
+        assertEquals(pid(3), policy.chooseVictim(allBut(pid(2))));
+
+        policy.pageRemoved(pid(2));
+        policy.pageRemoved(pid(3));
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+        assertNull(policy.chooseVictim(allBut(pid(1))));
+    }
+
+    /**
+     * CLOCK gives referenced pages a second chance.
+     */
+    @Test public void clock() {
+        EvictionPolicy policy = new ClockEvictionPolicy();
+        policy.pageAdded(pid(1));
+        policy.pageAdded(pid(2));
+        policy.pageAdded(pid(3));
+        // every page is referenced: the first sweep clears the bits
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(1));
+
+        // 2 gets a second chance, 3 does not
+        policy.pageAccessed(pid(2));
+        assertEquals(pid(3), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(3));
+
+        // freed frames are reused
+        policy.pageAdded(pid(4));
+        assertNull(policy.chooseVictim(new EvictionPolicy.Filter() {
+            public boolean canEvict(PageId pid) {
+                return false;
+            }
+        }));
+    }
+
+    /**
+     * LRU-2 evicts pages seen only once before pages seen twice, even if the
+     * once-seen pages were used more recently.
+     */
+    @Test public void lruK() {
+        EvictionPolicy policy = new LRUKEvictionPolicy(2);
+        policy.pageAdded(pid(1));
+        policy.pageAccessed(pid(1));
+        policy.pageAdded(pid(2));
+        policy.pageAdded(pid(3));
+        assertEquals(pid(2), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(2));
+        assertEquals(pid(3), policy.chooseVictim(ANY));
+
+        // once 3 has been seen twice, the older second-to-last access loses
+        policy.pageAccessed(pid(3));
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+        assertEquals(pid(3), policy.chooseVictim(allBut(pid(1))));
+    }
+
+    /**
+     * The hit and miss counters of the BufferPool track getPage calls.
+     */
+    @Test public void hitMissCounters() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = Database.resetBufferPool(2, new LRUKEvictionPolicy());
+        TransactionId tid = new TransactionId();
+
+        PageId hot = new HeapPageId(hf.getId(), 0);
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+        assertEquals(1, bp.getMissCount());
+        assertEquals(1, bp.getHitCount());
+
+        // a one-pass scan of the other pages must not push out the hot page
+        for (int i = 1; i < hf.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+        assertEquals(4, bp.getMissCount());
+        assertEquals(2, bp.getHitCount());
+
+        bp.resetStats();
+        assertEquals(0, bp.getMissCount());
+        assertEquals(0, bp.getHitCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FrameArenaTest {
+
+    /**
+     * Frames are page sized, direct, and do not overlap; the arena hands
+     * out no more frames than it has.
+     */
+    @Test public void allocate() {
+        FrameArena arena = new FrameArena(3, 16);
+        List<PageBuffer> frames = new ArrayList<PageBuffer>();
+        for (int i = 0; i < 3; i++) {
+            PageBuffer frame = arena.allocate();
+            assertNotNull(frame);
+            assertTrue(frame.isFrame());
+            assertTrue(frame.view().isDirect());
+            assertEquals(16, frame.capacity());
+            frame.view().put(0, (byte) i);
+            frames.add(frame);
+        }
+        assertNull(arena.allocate());
+        assertEquals(0, arena.getFreeFrames());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, frames.get(i).get(0));
+        }
+    }
+
+    /**
+     * A released frame comes back to the arena at once, and the buffer
+     * keeps its bytes, on the heap.
+     */
+    @Test public void release() {
+        FrameArena arena = new FrameArena(1, 16);
+        PageBuffer released = arena.allocate();
+        released.view().put(3, (byte) 7);
+        assertNull(arena.allocate());
+
+        released.release();
+        assertFalse(released.isFrame());
+        assertEquals(1, arena.getFreeFrames());
+        PageBuffer frame = arena.allocate();
+        assertNotNull(frame);
+        frame.view().put(3, (byte) 9);
+        assertEquals(7, released.get(3));
+
+        // releasing again does not free the frame a second time
+        released.release();
+        assertEquals(0, arena.getFreeFrames());
+    }
+
+    /**
+     * A frame that was never released comes back to the arena once nothing
+     * refers to it.
+     */
+    @Test public void reclaim() throws Exception {
+        FrameArena arena = new FrameArena(2, 16);
+        PageBuffer kept = arena.allocate();
+        assertNotNull(arena.allocate());
+        assertEquals(0, arena.getFreeFrames());
+
+        for (int i = 0; i < 50 && arena.getFreeFrames() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, arena.getFreeFrames());
+        assertNotNull(arena.allocate());
+        assertNull(arena.allocate());
+        assertEquals(16, kept.capacity());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FrameArenaTest.class);
+    }
+}
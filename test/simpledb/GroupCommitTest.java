@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class GroupCommitTest {
+
+    private File file;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("grouplog", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    @After public void tearDown() {
+        LogSegmentsTest.delete(log.segmentDir);
+        file.delete();
+    }
+
+    /** Begins and commits a transaction in a new thread. */
+    private Thread committer(final List<Exception> errors) {
+        return new Thread() {
+            public void run() {
+                try {
+                    TransactionId tid = new TransactionId();
+                    log.logXactionBegin(tid);
+                    log.logCommit(tid);
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        };
+    }
+
+    /** Reads the records in the log, and returns their types. */
+    private List<Integer> recordTypes() throws IOException {
+        log.flushBuffer();
+        List<Integer> types = new ArrayList<Integer>();
+        LogFile.LogReader reader = log.new LogReader(0);
+        try {
+            LogFile.LogRecord r;
+            while ((r = reader.next()) != null) {
+                types.add(r.type);
+            }
+        } finally {
+            reader.close();
+        }
+        return types;
+    }
+
+    /**
+     * With no group commit delay, a lone commit forces the log right away.
+     */
+    @Test public void singleCommit() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        assertEquals(0, log.getForceCount());
+        log.logCommit(tid);
+        assertEquals(1, log.getForceCount());
+        assertEquals(Arrays.asList(LogFile.BEGIN_RECORD, LogFile.COMMIT_RECORD), recordTypes());
+    }
+
+    /**
+     * Concurrent committers share a force of the log.
+     */
+    @Test public void groupCommit() throws Exception {
+        int clients = 8;
+        log.setGroupCommit(2000000, clients);
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < clients; i++) {
+            threads.add(committer(errors));
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        assertTrue(errors.isEmpty());
+        // the batch filled up long before the delay ran out
+        assertTrue((System.nanoTime() - start) / 1000000 < 2000);
+        assertTrue(log.getForceCount() < clients);
+
+        List<Integer> types = recordTypes();
+        assertEquals(2 * clients, types.size());
+        assertEquals(clients, Collections.frequency(types, LogFile.COMMIT_RECORD));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
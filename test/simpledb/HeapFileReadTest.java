@@ -77,6 +77,27 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() on a page past the first one, and
+     * past the end of the file
+     */
+    @Test
+    public void readPageRandomAccess() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 3 + 1, null, null);
+        assertEquals(4, big.numPages());
+
+        HeapPage page = (HeapPage) big.readPage(new HeapPageId(big.getId(), 3));
+        assertEquals(503, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(0));
+
+        try {
+            big.readPage(new HeapPageId(big.getId(), 4));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -121,6 +142,26 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * An interrupt during a read closes the file's channel; the next read,
+     * by a thread that is not interrupted, opens a new one.
+     */
+    @Test
+    public void readAfterInterrupt() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Thread.currentThread().interrupt();
+        try {
+            hf.readPage(pid);
+            fail("expected exception");
+        } catch (RuntimeException e) {
+            // the read failed with ClosedByInterruptException
+        } finally {
+            Thread.interrupted();
+        }
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(HeapPage.getNumTuples(td) - 20, page.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
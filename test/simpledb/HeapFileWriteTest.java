@@ -1,5 +1,7 @@
 package simpledb;
 
+import simpledb.systemtest.SystemTestUtil;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +45,68 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple() on a file whose free space is
+     * known only from disk: the insert goes straight to the one page with
+     * room, without locking the full pages before it.
+     */
+    @Test public void insertUsesFreeSpace() throws Exception {
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        TransactionId deleter = new TransactionId();
+        DbFileIterator it = full.iterator(deleter);
+        it.open();
+        for (int i = 0; i < 504; i++) it.next();
+        Database.getBufferPool().deleteTuple(deleter, it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(deleter);
+
+        // a new HeapFile over the same file builds its map from the headers
+        HeapFile reopened = new HeapFile(full.getFile(), full.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Page page = reopened.insertTuple(tid, Utility.getHeapTuple(0, 2)).get(0);
+        assertEquals(1, page.getId().getPageNumber());
+        assertEquals(3, reopened.numPages());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(reopened.getId(), 0)));
+
+        // the page is full again, so the next insert appends a page
+        page = reopened.insertTuple(tid, Utility.getHeapTuple(1, 2)).get(0);
+        assertEquals(3, page.getId().getPageNumber());
+        assertEquals(4, reopened.numPages());
+    }
+
+    /**
+     * A delete that is only in the buffer pool counts, even if the map is
+     * not built until after it.
+     */
+    @Test public void insertAfterPooledDelete() throws Exception {
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        DbFileIterator it = full.iterator(tid);
+        it.open();
+        Database.getBufferPool().deleteTuple(tid, it.next());
+        it.close();
+
+        Database.getBufferPool().insertTuple(tid, full.getId(), Utility.getHeapTuple(0, 2));
+        assertEquals(2, full.numPages());
+    }
+
+    /**
+     * A page that an aborted insert filled has room again after the abort.
+     */
+    @Test public void insertAfterAbort() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 2 - 1, null, null);
+        TransactionId aborted = new TransactionId();
+        Tuple t = Utility.getHeapTuple(0, 2);
+        Database.getBufferPool().insertTuple(aborted, f.getId(), t);
+        assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+        Database.getBufferPool().transactionComplete(aborted, false);
+
+        t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+        assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(2, f.numPages());
+    }
+
     /**
      * JUnit suite target
      */
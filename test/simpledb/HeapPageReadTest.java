@@ -11,7 +11,9 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -120,6 +122,33 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Tuples are decoded from the page bytes only when read, stay valid
+     * after their slot is deleted, and untouched slots serialize back to the
+     * same bytes.
+     */
+    @Test public void lazyDecoding() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int i = 0; i < page.numSlots; ++i)
+            assertNull(page.tuples[i]);
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        assertEquals(EXAMPLE_VALUES[0][1], ((IntField) first.getField(1)).getValue());
+        assertEquals(EXAMPLE_VALUES[0][0], ((IntField) first.getField(0)).getValue());
+
+        HeapPage reread = new HeapPage(pid, page.getPageData());
+        assertFalse(reread.isSlotUsed(0));
+        Iterator<Tuple> it = reread.iterator();
+        for (int row = 1; row < EXAMPLE_VALUES.length; ++row) {
+            Tuple tup = it.next();
+            assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
     /**
      * JUnit suite target
      */
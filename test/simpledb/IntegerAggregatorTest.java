@@ -126,6 +126,50 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator over many more tuples than groups: it keeps
+   * running values rather than the tuples, which would not fit in the
+   * memory the tests run with
+   */
+  @Test public void manyTuples() throws Exception {
+    final int tuples = 2000000, groups = 100;
+    TupleDesc td = Utility.getTupleDesc(width1);
+    IntegerAggregator[] aggs = new IntegerAggregator[Aggregator.Op.COUNT.ordinal() + 1];
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX,
+        Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+      aggs[op.ordinal()] = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+    }
+    for (int i = 0; i < tuples; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i % groups));
+      t.setField(1, new IntField(i));
+      for (IntegerAggregator agg : aggs) {
+        agg.mergeTupleIntoGroup(t);
+      }
+    }
+
+    // group g holds g, g + groups, ..., tuples - groups + g
+    int n = tuples / groups;
+    int[] expected = new int[groups * 2];
+    for (Aggregator.Op op : Aggregator.Op.values()) {
+      if (op.ordinal() >= aggs.length) continue;
+      for (int g = 0; g < groups; g++) {
+        long sum = (long) n * g + (long) groups * n * (n - 1) / 2;
+        expected[2 * g] = g;
+        switch (op) {
+        case MIN: expected[2 * g + 1] = g; break;
+        case MAX: expected[2 * g + 1] = tuples - groups + g; break;
+        case SUM: expected[2 * g + 1] = (int) sum; break;
+        case AVG: expected[2 * g + 1] = (int) (sum / n); break;
+        default: expected[2 * g + 1] = n; break;
+        }
+      }
+      OpIterator it = aggs[op.ordinal()].iterator();
+      it.open();
+      TestUtil.matchAllTuples(TestUtil.createTupleList(width1, expected), it);
+    }
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
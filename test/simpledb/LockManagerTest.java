@@ -0,0 +1,361 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int TIMEOUT = 100;
+
+    private LockManager lm;
+    private PageId pid;
+
+    /** Acquires a lock in a new thread and records the order of grants. */
+    private class Acquirer extends Thread {
+        final TransactionId tid = new TransactionId();
+        final boolean exclusive;
+        final List<Acquirer> grants;
+        volatile boolean acquired = false;
+        volatile boolean done = false;
+
+        Acquirer(boolean exclusive, List<Acquirer> grants) {
+            this.exclusive = exclusive;
+            this.grants = grants;
+        }
+
+        public void run() {
+            acquired = exclusive ? lm.acquireWriteLock(pid, tid) : lm.acquireReadLock(pid, tid);
+            if (acquired) grants.add(this);
+            done = true;
+        }
+    }
+
+    private Acquirer start(boolean exclusive, List<Acquirer> grants) throws InterruptedException {
+        Acquirer a = new Acquirer(exclusive, grants);
+        a.start();
+        // give the thread time to join the queue
+        Thread.sleep(TIMEOUT / 4);
+        return a;
+    }
+
+    @Before public void setUp() {
+        lm = LockManager.getInstance();
+        pid = new HeapPageId(0, 0);
+    }
+
+    /**
+     * Waiters are granted in arrival order; a shared request does not jump
+     * ahead of an earlier exclusive one.
+     */
+    @Test public void fifoGrants() throws Exception {
+        List<Acquirer> grants = Collections.synchronizedList(new ArrayList<Acquirer>());
+        TransactionId holder = new TransactionId();
+        assertTrue(lm.acquireWriteLock(pid, holder));
+
+        Acquirer reader1 = start(false, grants);
+        Acquirer writer = start(true, grants);
+        Acquirer reader2 = start(false, grants);
+        assertTrue(grants.isEmpty());
+
+        lm.releaseLock(holder);
+        reader1.join(TIMEOUT);
+        assertTrue(reader1.acquired);
+        Thread.sleep(TIMEOUT / 4);
+        assertFalse(writer.done);
+        assertFalse(reader2.done);
+
+        lm.releaseLock(reader1.tid);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired);
+        lm.releaseLock(writer.tid);
+        reader2.join(TIMEOUT);
+        assertTrue(reader2.acquired);
+        assertEquals(Arrays.asList(reader1, writer, reader2), grants);
+        assertTrue(lm.holdsLock(pid, reader2.tid));
+        assertFalse(lm.holdsLock(pid, writer.tid));
+    }
+
+    /**
+     * A run of shared requests at the head of the queue is granted at once.
+     */
+    @Test public void readBatching() throws Exception {
+        List<Acquirer> grants = Collections.synchronizedList(new ArrayList<Acquirer>());
+        TransactionId holder = new TransactionId();
+        assertTrue(lm.acquireWriteLock(pid, holder));
+
+        Acquirer[] readers = new Acquirer[3];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = start(false, grants);
+        }
+        lm.releaseLock(holder);
+        for (Acquirer r : readers) {
+            r.join(TIMEOUT);
+            assertTrue(r.acquired);
+            assertTrue(lm.holdsLock(pid, r.tid));
+        }
+    }
+
+    /**
+     * A waiter is granted the lock as soon as it is released.
+     */
+    @Test public void wakeOnRelease() throws Exception {
+        List<Acquirer> grants = Collections.synchronizedList(new ArrayList<Acquirer>());
+        TransactionId holder = new TransactionId();
+        assertTrue(lm.acquireReadLock(pid, holder));
+
+        Acquirer writer = start(true, grants);
+        assertFalse(writer.done);
+        long start = System.nanoTime();
+        lm.releasePage(pid, holder, true);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired);
+        assertTrue((System.nanoTime() - start) / 1000000 < TIMEOUT);
+    }
+
+    /**
+     * A cycle in the wait-for graph is broken right away by refusing the
+     * youngest transaction on it.
+     */
+    @Test public void deadlockVictim() throws Exception {
+        final TransactionId older = new TransactionId();
+        final TransactionId younger = new TransactionId();
+        final PageId other = new HeapPageId(0, 1);
+        assertTrue(lm.acquireWriteLock(pid, older));
+        assertTrue(lm.acquireWriteLock(other, younger));
+
+        final boolean[] olderGot = new boolean[1];
+        Thread t = new Thread() {
+            public void run() {
+                olderGot[0] = lm.acquireWriteLock(other, older);
+            }
+        };
+        t.start();
+        Thread.sleep(TIMEOUT / 4);
+        assertEquals(0, lm.getDeadlockCount());
+
+        long start = System.nanoTime();
+        assertFalse(lm.acquireWriteLock(pid, younger));
+        assertTrue((System.nanoTime() - start) / 1000000 < TIMEOUT);
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseLock(younger);
+        t.join(TIMEOUT);
+        assertTrue(olderGot[0]);
+        assertTrue(lm.holdsLock(other, older));
+    }
+
+    /**
+     * A request that closes two cycles at once has both of them broken, and
+     * each is counted once.
+     */
+    @Test public void twoCycles() throws Exception {
+        final TransactionId t1 = new TransactionId();
+        final TransactionId t2 = new TransactionId();
+        final TransactionId t3 = new TransactionId();
+        final PageId p2 = new HeapPageId(0, 1);
+        final PageId p3 = new HeapPageId(0, 2);
+        assertTrue(lm.acquireReadLock(pid, t2));
+        assertTrue(lm.acquireReadLock(pid, t3));
+        assertTrue(lm.acquireWriteLock(p2, t1));
+        assertTrue(lm.acquireWriteLock(p3, t1));
+
+        final boolean[] got = new boolean[3];
+        Thread w2 = new Thread() {
+            public void run() {
+                got[1] = lm.acquireWriteLock(p2, t2);
+            }
+        };
+        Thread w3 = new Thread() {
+            public void run() {
+                got[2] = lm.acquireWriteLock(p3, t3);
+            }
+        };
+        w2.start();
+        w3.start();
+        Thread.sleep(TIMEOUT / 4);
+
+        // t1 now waits for both t2 and t3, which wait for t1
+        Thread w1 = new Thread() {
+            public void run() {
+                got[0] = lm.acquireWriteLock(pid, t1);
+            }
+        };
+        w1.start();
+        w2.join(TIMEOUT);
+        w3.join(TIMEOUT);
+        assertFalse(w2.isAlive() || w3.isAlive());
+        assertFalse(got[1] || got[2]);
+        assertEquals(2, lm.getDeadlockCount());
+
+        lm.releaseLock(t2);
+        lm.releaseLock(t3);
+        w1.join(TIMEOUT);
+        assertTrue(got[0]);
+    }
+
+    /**
+     * Two shared holders that both try to upgrade deadlock; the older one
+     * gets the exclusive lock.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        final TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        assertTrue(lm.acquireReadLock(pid, older));
+        assertTrue(lm.acquireReadLock(pid, younger));
+
+        final boolean[] olderGot = new boolean[1];
+        Thread t = new Thread() {
+            public void run() {
+                olderGot[0] = lm.acquireWriteLock(pid, older);
+            }
+        };
+        t.start();
+        Thread.sleep(TIMEOUT / 4);
+        assertFalse(lm.acquireWriteLock(pid, younger));
+        lm.releaseLock(younger);
+        t.join(TIMEOUT);
+        assertTrue(olderGot[0]);
+        assertEquals(1, lm.getDeadlockCount());
+    }
+
+    /**
+     * The only holder of a shared lock can upgrade it.
+     */
+    @Test public void upgrade() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertTrue(lm.acquireReadLock(pid, tid));
+        assertTrue(lm.acquireWriteLock(pid, tid));
+        assertTrue(lm.acquireReadLock(pid, tid));
+        assertEquals(Arrays.asList(pid), lm.getPages(tid));
+        lm.releaseLock(tid);
+        assertNull(lm.getPages(tid));
+        assertFalse(lm.holdsLock(pid, tid));
+    }
+
+    /**
+     * Of two shared holders that both ask for an upgrade, the second one is
+     * refused at once, and the first one gets the lock when the second
+     * releases its shared lock.
+     */
+    @Test public void conflictingUpgrades() throws Exception {
+        final TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        assertTrue(lm.acquireReadLock(pid, t1));
+        assertTrue(lm.acquireReadLock(pid, t2));
+
+        final boolean[] upgraded = new boolean[1];
+        Thread upgrader = new Thread() {
+            public void run() {
+                upgraded[0] = lm.acquireWriteLock(pid, t1);
+            }
+        };
+        upgrader.start();
+        Thread.sleep(TIMEOUT / 4);
+
+        long start = System.nanoTime();
+        assertFalse(lm.acquireWriteLock(pid, t2));
+        assertTrue((System.nanoTime() - start) / 1000000 < TIMEOUT);
+        lm.releaseLock(t2);
+        upgrader.join(TIMEOUT);
+        assertTrue(upgraded[0]);
+    }
+
+    /**
+     * Reads outside a transaction (a null tid, as in TableStats) take no
+     * locks, and do not wait for the locks of others.
+     */
+    @Test public void nullTransaction() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertTrue(lm.acquireWriteLock(pid, tid));
+        assertTrue(lm.acquireReadLock(pid, null));
+        assertFalse(lm.holdsLock(pid, null));
+        assertNull(lm.getPages(null));
+        lm.releasePage(pid, null, true);
+        lm.releaseLock(null);
+        assertTrue(lm.holdsLock(pid, tid));
+    }
+
+    /**
+     * A table lock conflicts with the intention locks taken for page locks
+     * on the same table, but not with those on other tables.
+     */
+    @Test public void intentionLocks() throws Exception {
+        TransactionId reader = new TransactionId();
+        TransactionId scanner = new TransactionId();
+        assertTrue(lm.acquireReadLock(pid, reader));
+        assertTrue(lm.acquireTableLock(0, scanner, false));
+        assertTrue(lm.holdsLock(new HeapPageId(0, 5), scanner));
+        assertTrue(lm.acquireReadLock(new HeapPageId(0, 5), scanner));
+        assertTrue(lm.getPages(scanner).isEmpty());
+
+        List<Acquirer> grants = Collections.synchronizedList(new ArrayList<Acquirer>());
+        Acquirer writer = start(true, grants);
+        assertFalse(writer.done);
+        assertTrue(lm.acquireWriteLock(new HeapPageId(1, 0), scanner));
+
+        lm.releaseLock(scanner);
+        writer.join(TIMEOUT);
+        assertFalse(writer.done);
+        lm.releaseLock(reader);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired);
+    }
+
+    /**
+     * Page locks past the threshold are replaced by one table lock, which
+     * is exclusive if any of them was.
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(4);
+        TransactionId tid = new TransactionId();
+        assertTrue(lm.acquireWriteLock(new HeapPageId(0, 0), tid));
+        for (int i = 1; i < 4; i++) {
+            assertTrue(lm.acquireReadLock(new HeapPageId(0, i), tid));
+        }
+        assertEquals(4, lm.getPages(tid).size());
+        assertEquals(0, lm.getEscalationCount());
+
+        assertTrue(lm.acquireReadLock(new HeapPageId(0, 4), tid));
+        assertEquals(1, lm.getEscalationCount());
+        assertTrue(lm.getPages(tid).isEmpty());
+        assertTrue(lm.holdsLock(new HeapPageId(0, 100), tid));
+
+        // the escalated lock is exclusive, so other transactions can't read
+        List<Acquirer> grants = Collections.synchronizedList(new ArrayList<Acquirer>());
+        Acquirer reader = start(false, grants);
+        assertFalse(reader.done);
+        lm.releaseLock(tid);
+        reader.join(TIMEOUT);
+        assertTrue(reader.acquired);
+    }
+
+    /**
+     * Escalation does not wait for a conflicting table lock; the page locks
+     * are kept instead.
+     */
+    @Test public void escalationNeverWaits() throws Exception {
+        lm.setEscalationThreshold(2);
+        TransactionId other = new TransactionId();
+        TransactionId tid = new TransactionId();
+        assertTrue(lm.acquireWriteLock(new HeapPageId(0, 9), other));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(lm.acquireReadLock(new HeapPageId(0, i), tid));
+        }
+        assertEquals(0, lm.getEscalationCount());
+        assertEquals(3, lm.getPages(tid).size());
+        assertFalse(lm.holdsLock(new HeapPageId(0, 9), tid));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+    private File file;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("segmentlog", ".log");
+        file.deleteOnExit();
+    }
+
+    @After public void tearDown() {
+        delete(new File(file.getPath() + ".segments"));
+        file.delete();
+    }
+
+    /** Deletes a directory of segments. */
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Bytes appended across segment boundaries read back in order, and
+     * dropping segments keeps the positions of the rest.
+     */
+    @Test public void appendAndRead() throws Exception {
+        LogSegments segments = new LogSegments(new File(file.getPath() + ".segments"), 16);
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        segments.append(data, 0, 30);
+        segments.append(data, 30, 70);
+        assertEquals(100, segments.length());
+        assertEquals(7, segments.numSegments());
+
+        DataInputStream in = new DataInputStream(segments.openStream(10));
+        byte[] read = new byte[90];
+        in.readFully(read);
+        assertArrayEquals(Arrays.copyOfRange(data, 10, 100), read);
+        assertEquals(-1, in.read());
+        in.close();
+
+        assertEquals(2, segments.dropBefore(40));
+        assertEquals(32, segments.firstOffset());
+        in = new DataInputStream(segments.openStream(40));
+        assertEquals(40, in.readByte());
+        in.close();
+        segments.close();
+    }
+
+    /**
+     * Truncation keeps the segment of the first record of a running
+     * transaction, and drops whole segments once nothing needs them.
+     */
+    @Test public void truncate() throws Exception {
+        LogFile log = new LogFile(file, 64);
+        TransactionId open = new TransactionId();
+        log.logXactionBegin(open);
+        for (int i = 0; i < 20; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        log.logCheckpoint();
+        int before = log.segmentDir.list().length;
+        assertTrue(before > 10);
+        LogFile.LogReader reader = log.new LogReader(0);
+        assertEquals(open.getId(), reader.next().tid);
+        reader.close();
+
+        log.logCommit(open);
+        log.logCheckpoint();
+        assertTrue(log.segmentDir.list().length <= 2);
+
+        // recovery from the remaining segments finds nothing to undo
+        log = new LogFile(file);
+        log.recover();
+        assertEquals(0, log.getRecoveryStats().losers);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  static final int ROWS = 20000;
+  TupleDesc td = Utility.getTupleDesc(2);
+  List<Tuple> tuples;
+
+  /**
+   * Initialize each unit test: enough tuples that the smaller memory
+   * budgets below split them into several runs
+   */
+  @Before public void setUp() {
+    tuples = TestUtil.createTiedTuples(ROWS, 100, 42);
+  }
+
+  private OpIterator expected(boolean asc) {
+    List<Tuple> sorted = new ArrayList<Tuple>(tuples);
+    Collections.sort(sorted, new OrderBy.TupleComparator(0, asc));
+    TupleIterator it = new TupleIterator(td, sorted);
+    it.open();
+    return it;
+  }
+
+  private OrderBy orderBy(boolean asc, int memoryTuples) throws Exception {
+    OrderBy op = new OrderBy(0, asc, new TupleIterator(td, tuples));
+    op.setMemoryBudget(memoryTuples);
+    op.open();
+    return op;
+  }
+
+  /**
+   * Input within the budget is sorted in memory
+   */
+  @Test public void inMemory() throws Exception {
+    OrderBy op = orderBy(true, ROWS);
+    TestUtil.compareDbIterators(expected(true), op);
+    assertEquals(0, op.numRuns());
+    op.close();
+  }
+
+  /**
+   * Input over the budget is sorted in runs merged in one pass, stably
+   */
+  @Test public void external() throws Exception {
+    OrderBy op = orderBy(true, 4100);
+    assertEquals(4, op.numRuns());
+    TestUtil.compareDbIterators(expected(true), op);
+
+    op.rewind();
+    TestUtil.compareDbIterators(expected(true), op);
+    op.close();
+  }
+
+  /**
+   * More runs than fit in memory at once are merged in several passes
+   */
+  @Test public void multiPass() throws Exception {
+    OrderBy op = orderBy(false, 100);
+    assertTrue(op.numRuns() > ROWS / 100);
+    TestUtil.compareDbIterators(expected(false), op);
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,70 @@
+package simpledb;
+
+import java.io.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageCodecTest extends SimpleDbTestBase {
+
+    private static PageId roundTrip(PageId pid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PageCodec.forId(pid).writeId(new DataOutputStream(bytes), pid);
+        // a tag, a table id and a page number
+        assertEquals(9, bytes.size());
+        return PageCodec.readId(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    /**
+     * Each kind of page id reads back as written.
+     */
+    @Test public void ids() throws Exception {
+        PageId[] pids = {
+            new HeapPageId(17, 3),
+            new BTreePageId(17, 0, BTreePageId.ROOT_PTR),
+            new BTreePageId(17, 4, BTreePageId.INTERNAL),
+            new BTreePageId(17, 5, BTreePageId.LEAF),
+            new BTreePageId(17, 6, BTreePageId.HEADER),
+        };
+        for (PageId pid : pids) {
+            assertEquals(pid, roundTrip(pid));
+        }
+        assertEquals(PageCodec.HEAP_PAGE, PageCodec.forId(pids[0]).getTag());
+        assertEquals(PageCodec.BTREE_LEAF_PAGE, PageCodec.forId(pids[3]).getTag());
+    }
+
+    /**
+     * A page made by its codec has the bytes it was made from.
+     */
+    @Test public void makePage() throws Exception {
+        HeapPageId pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-1, Utility.getTupleDesc(2)), "codec");
+        Page page = PageCodec.forPage(new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA))
+            .makePage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertTrue(page instanceof HeapPage);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData());
+    }
+
+    @Test(expected = IOException.class) public void unknownTag() throws Exception {
+        PageCodec.forTag(100);
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void duplicateTag() {
+        PageCodec.register(new PageCodec(PageCodec.HEAP_PAGE, Page.class) {
+            public boolean handles(PageId pid) { return false; }
+            public PageId makeId(int tableId, int pgNo) { return null; }
+            public Page makePage(PageId pid, byte[] data) { return null; }
+        });
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCodecTest.class);
+    }
+}
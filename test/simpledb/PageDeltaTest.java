@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * An insert changes a header byte and one slot; the delta holds just
+     * those bytes and can be redone and undone.
+     */
+    @Test public void insertDelta() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        byte[] after = page.getPageData();
+
+        PageDelta delta = PageDelta.diff(before, after);
+        assertEquals(2, delta.numRuns());
+        assertTrue(delta.changedBytes() <= 1 + Utility.getTupleDesc(2).getSize());
+
+        byte[] data = before.clone();
+        delta.redo(data);
+        assertArrayEquals(after, data);
+        // redoing again changes nothing
+        delta.redo(data);
+        assertArrayEquals(after, data);
+        delta.undo(data);
+        assertArrayEquals(before, data);
+    }
+
+    /**
+     * A delta reads back as written.
+     */
+    @Test public void serialize() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        Iterator<Tuple> it = page.iterator();
+        page.deleteTuple(it.next());
+        page.deleteTuple(it.next());
+        byte[] after = page.getPageData();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PageDelta.diff(before, after).writeTo(new DataOutputStream(bytes));
+        assertTrue(bytes.size() < 100);
+        PageDelta delta = PageDelta.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                before.length);
+
+        byte[] data = before.clone();
+        delta.redo(data);
+        assertArrayEquals(after, data);
+        delta.undo(data);
+        assertArrayEquals(before, data);
+    }
+
+    /**
+     * Counts and lengths that cannot belong to a delta of the page, as at
+     * the torn end of a log, are refused before anything is allocated.
+     */
+    @Test public void badCounts() throws Exception {
+        int[][] bad = {
+            {Integer.MAX_VALUE},    // too many runs
+            {-1},                   // negative number of runs
+            {1, 0, -5},             // negative length
+            {1, 10, 4096},          // run past the end of the page
+        };
+        for (int[] ints : bad) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int i : ints) out.writeInt(i);
+            assertCorrupt(bytes.toByteArray());
+        }
+
+        // runs that together change more than the page
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(2);
+        out.writeInt(0);
+        out.writeInt(3000);
+        out.write(new byte[6000]);
+        out.writeInt(1000);
+        out.writeInt(3000);
+        assertCorrupt(bytes.toByteArray());
+    }
+
+    private void assertCorrupt(byte[] bytes) throws IOException {
+        try {
+            PageDelta.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)), 4096);
+            fail("read a delta from garbage");
+        } catch (StreamCorruptedException e) {
+            // expected
+        }
+    }
+
+    @Test public void noChange() {
+        byte[] data = HeapPageReadTest.EXAMPLE_DATA;
+        assertEquals(0, PageDelta.diff(data, data.clone()).numRuns());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageWriterTest extends SimpleDbTestBase {
+
+    @After public void force() throws IOException {
+        Database.getBufferPool().setForce(true);
+    }
+
+    /**
+     * Consecutive pages of a heap file are written in one call.
+     */
+    @Test public void coalesce() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        assertEquals(6, f.numPages());
+        List<Page> pages = new ArrayList<Page>();
+        for (int pgNo : new int[]{5, 1, 0, 3, 2}) {
+            pages.add(f.readPage(new HeapPageId(f.getId(), pgNo)));
+        }
+        // 0-3 and 5
+        assertEquals(2, f.writePages(pages));
+        for (Page page : pages) {
+            assertArrayEquals(page.getPageData(), f.readPage(page.getId()).getPageData());
+        }
+    }
+
+    /**
+     * Without FORCE, a commit leaves its pages to the writer, which writes
+     * them back in coalesced runs.
+     */
+    @Test public void noForceCommit() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        BufferPool pool = Database.resetBufferPool(50);
+        pool.setForce(false);
+        assertFalse(pool.isForce());
+
+        List<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = 0; i < 504 * 3; i++) {
+            rows.add(Utility.getHeapTuple(i, 2));
+        }
+        Transaction t = new Transaction();
+        t.start();
+        Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), rows), f.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+        t.commit();
+
+        pool.setForce(true);
+        assertTrue(pool.getDirtyPageTable().isEmpty());
+        assertEquals(3, pool.getPagesWritten());
+        assertTrue(pool.getWriteCount() < pool.getPagesWritten());
+
+        // the rows are in the file
+        Database.resetBufferPool(50);
+        t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), f.getId());
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        t.commit();
+        assertEquals(504 * 3, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageWriterTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortAggregateTest extends SimpleDbTestBase {
+
+  static final int ROWS = 3000;
+  TupleDesc td = Utility.getTupleDesc(2);
+  List<Tuple> tuples;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void setUp() {
+    Random r = new Random(11);
+    tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < ROWS; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(r.nextInt(200)));
+      t.setField(1, new IntField(r.nextInt(1000) - 500));
+      tuples.add(t);
+    }
+  }
+
+  /**
+   * @return the results of a hash Aggregate, in the order of the groups
+   */
+  private OpIterator expected(Aggregator.Op op, boolean asc) throws Exception {
+    OpIterator it = new OrderBy(0, asc,
+        new Aggregate(new TupleIterator(td, tuples), 1, 0, op));
+    it.open();
+    return it;
+  }
+
+  /**
+   * Unit test for SortAggregate.getNext(): the results of Aggregate over
+   *   the same input, group by group
+   */
+  @Test public void sameAsAggregate() throws Exception {
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX,
+        Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+      for (boolean asc : new boolean[] { true, false }) {
+        SortAggregate agg = new SortAggregate(
+            new OrderBy(0, asc, new TupleIterator(td, tuples)), 1, 0, op);
+        agg.open();
+        TestUtil.compareDbIterators(expected(op, asc), agg);
+        agg.close();
+      }
+    }
+  }
+
+  /**
+   * Unit test for SortAggregate.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    SortAggregate agg = new SortAggregate(
+        new OrderBy(0, true, new TupleIterator(td, tuples)), 1, 0, Aggregator.Op.SUM);
+    agg.open();
+    for (int i = 0; i < 10; i++) {
+      agg.next();
+    }
+    agg.rewind();
+    TestUtil.compareDbIterators(expected(Aggregator.Op.SUM, true), agg);
+    agg.close();
+  }
+
+  /**
+   * Unit test for SortAggregate.isOrderedOn()
+   */
+  @Test public void isOrderedOn() throws Exception {
+    OpIterator sorted = new OrderBy(0, false, new TupleIterator(td, tuples));
+    assertTrue(SortAggregate.isOrderedOn(sorted, 0));
+    assertFalse(SortAggregate.isOrderedOn(sorted, 1));
+    Predicate p = new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(0));
+    assertTrue(SortAggregate.isOrderedOn(new Filter(p, sorted), 0));
+    assertFalse(SortAggregate.isOrderedOn(new TupleIterator(td, tuples), 0));
+
+    TransactionId tid = new TransactionId();
+    File hf = File.createTempFile("heap", ".dat");
+    hf.deleteOnExit();
+    HeapFile heap = Utility.createEmptyHeapFile(hf.getAbsolutePath(), 2);
+    assertFalse(SortAggregate.isOrderedOn(new SeqScan(tid, heap.getId()), 0));
+
+    // a B+ tree keyed on field 1 is scanned in the order of field 1
+    File f = File.createTempFile("btree", ".dat");
+    f.deleteOnExit();
+    BTreeFile btree = new BTreeFile(f, 1, td);
+    Database.getCatalog().addTable(btree, UUID.randomUUID().toString());
+    assertTrue(SortAggregate.isOrderedOn(new SeqScan(tid, btree.getId()), 1));
+    assertFalse(SortAggregate.isOrderedOn(new SeqScan(tid, btree.getId()), 0));
+    assertTrue(SortAggregate.isOrderedOn(new BTreeScan(tid, btree.getId(), null), 1));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortAggregateTest.class);
+  }
+}
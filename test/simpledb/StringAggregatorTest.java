@@ -53,6 +53,19 @@ public class StringAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test StringAggregator without grouping: one count over all tuples
+   */
+  @Test public void countNoGrouping() throws Exception {
+    scan1.open();
+    StringAggregator agg = new StringAggregator(Aggregator.NO_GROUPING, null, 1, Aggregator.Op.COUNT);
+    while (scan1.hasNext())
+      agg.mergeTupleIntoGroup(scan1.next());
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 7 }), it);
+  }
+
   /**
    * Test StringAggregator.iterator() for OpIterator behaviour
    */
@@ -83,6 +83,24 @@ public class TestUtil {
         return result;
     }
 
+    /**
+     * @return rows two-int tuples: field 0 a random value below keys, so
+     *   that there are many ties, and field 1 the tuple's position, so that
+     *   a sort is checked for keeping ties in input order
+     */
+    public static List<Tuple> createTiedTuples(int rows, int keys, long seed) {
+        TupleDesc td = Utility.getTupleDesc(2);
+        Random r = new Random(seed);
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(r.nextInt(keys)));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
     /**
      * @return true iff the tuples have the same number of fields and
      *   corresponding fields in the two Tuples are all equal.
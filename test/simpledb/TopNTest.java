@@ -0,0 +1,97 @@
+package simpledb;
+
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  static final int ROWS = 2000;
+  TupleDesc td = Utility.getTupleDesc(2);
+  List<Tuple> tuples;
+
+  /**
+   * Initialize each unit test: far fewer keys than tuples, so that the
+   * first N tuples mostly end inside a run of ties, and TopN must keep
+   * the same ones OrderBy does
+   */
+  @Before public void setUp() {
+    tuples = TestUtil.createTiedTuples(ROWS, 50, 7);
+  }
+
+  /**
+   * @return the first n tuples of a full OrderBy
+   */
+  private OpIterator expected(boolean asc, int n) throws Exception {
+    OrderBy sort = new OrderBy(0, asc, new TupleIterator(td, tuples));
+    sort.open();
+    List<Tuple> first = new ArrayList<Tuple>();
+    while (first.size() < n && sort.hasNext()) {
+      first.add(sort.next());
+    }
+    sort.close();
+    TupleIterator it = new TupleIterator(td, first);
+    it.open();
+    return it;
+  }
+
+  private void check(boolean asc, int n) throws Exception {
+    TopN op = new TopN(0, asc, n, new TupleIterator(td, tuples));
+    op.open();
+    TestUtil.compareDbIterators(expected(asc, n), op);
+    op.close();
+  }
+
+  /**
+   * Unit test for TopN.getNext(): the same tuples, in the same order, as
+   *   the start of an OrderBy
+   */
+  @Test public void firstTuples() throws Exception {
+    for (int n : new int[]{0, 1, 10, 500, ROWS, ROWS + 1}) {
+      check(true, n);
+      check(false, n);
+    }
+  }
+
+  /**
+   * Unit test for TopN.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    TopN op = new TopN(0, true, 25, new TupleIterator(td, tuples));
+    op.open();
+    TestUtil.compareDbIterators(expected(true, 25), op);
+    op.rewind();
+    TestUtil.compareDbIterators(expected(true, 25), op);
+    op.close();
+  }
+
+  /**
+   * Unit test for Limit.getNext()
+   */
+  @Test public void limit() throws Exception {
+    Limit op = new Limit(30, new TupleIterator(td, tuples));
+    op.open();
+    for (int i = 0; i < 30; i++) {
+      assertTrue(op.hasNext());
+      assertTrue(TestUtil.compareTuples(tuples.get(i), op.next()));
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+
+    op.rewind();
+    assertTrue(TestUtil.compareTuples(tuples.get(0), op.next()));
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
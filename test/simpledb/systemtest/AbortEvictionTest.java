@@ -38,6 +38,51 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    /** Aborts a transaction that inserted more pages than the buffer pool
+     * holds, so some of its pages were written back before the abort, and
+     * ensures that none of its rows remain.
+     */
+    @Test public void testAbortStolenPages()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*2, null, null);
+        int pages = f.numPages();
+        Database.resetBufferPool(2);
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 512*4; i++) {
+            EvictionTest.insertRow(f, t);
+        }
+        assertTrue(f.numPages() >= pages + 4);
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertFalse(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** Same as testAbortStolenPages, but for a transaction that is not
+     * started through Transaction and is aborted by the buffer pool alone,
+     * as BTreeUtility and TestUtil do.
+     */
+    @Test public void testBufferPoolAbortStolenPages()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*2, null, null);
+        Database.resetBufferPool(2);
+
+        Transaction t = new Transaction();
+        for (int i = 0; i < 512*4; i++) {
+            EvictionTest.insertRow(f, t);
+        }
+        Database.getBufferPool().transactionComplete(t.getId(), false);
+
+        t = new Transaction();
+        t.start();
+        assertFalse(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
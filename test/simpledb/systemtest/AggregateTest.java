@@ -2,6 +2,8 @@ package simpledb.systemtest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -9,6 +11,8 @@ import simpledb.*;
 
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 public class AggregateTest extends SimpleDbTestBase {
     public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, ArrayList<ArrayList<Integer>> expectedResult)
             throws DbException, TransactionAbortedException, IOException {
@@ -113,6 +117,49 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /**
+     * Groups beyond the memory budget are spilled, some of them twice, and
+     * aggregated partition by partition; rewinding part way through starts
+     * the groups over.
+     */
+    @Test public void testSpill()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20000, 5000, null, createdTuples);
+        ArrayList<ArrayList<Integer>> expected =
+                aggregate(createdTuples, Aggregator.Op.SUM, 1, 0);
+
+        TransactionId tid = new TransactionId();
+        Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, Aggregator.Op.SUM);
+        ag.setMemoryBudget(100);
+        SystemTestUtil.matchTuples(ag, expected);
+        assertTrue(ag.spilled());
+
+        ag.open();
+        for (int i = 0; i < 150; i++) {
+            ag.next();
+        }
+        ag.rewind();
+        ArrayList<ArrayList<Integer>> actual = new ArrayList<ArrayList<Integer>>();
+        while (ag.hasNext()) {
+            actual.add(SystemTestUtil.tupleToList(ag.next()));
+        }
+        ag.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        Collections.sort(expected, LIST_ORDER);
+        Collections.sort(actual, LIST_ORDER);
+        assertEquals(expected, actual);
+    }
+
+    private static final Comparator<ArrayList<Integer>> LIST_ORDER =
+            new Comparator<ArrayList<Integer>>() {
+        public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+            return a.get(0).compareTo(b.get(0));
+        }
+    };
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
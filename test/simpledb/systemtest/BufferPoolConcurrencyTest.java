@@ -0,0 +1,99 @@
+package simpledb.systemtest;
+
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Multi-threaded read benchmark for the BufferPool page table. Every thread
+ * repeatedly fetches pages that are already cached, so all lookups are
+ * hits; the test prints the hit throughput for a growing number of threads
+ * and checks that no lookup went to disk or returned the wrong page.
+ */
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 32;
+    private static final int LOOKUPS_PER_THREAD = 200000;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    private static class Reader extends Thread {
+        private final int tableId;
+        private final CyclicBarrier barrier;
+        public Exception exception = null;
+
+        public Reader(int tableId, CyclicBarrier barrier) {
+            this.tableId = tableId;
+            this.barrier = barrier;
+        }
+
+        public void run() {
+            try {
+                TransactionId tid = new TransactionId();
+                BufferPool bp = Database.getBufferPool();
+                // take the page locks up front, so the timed loop measures
+                // the page table only
+                for (int i = 0; i < TABLE_PAGES; i++) {
+                    bp.getPage(tid, new HeapPageId(tableId, i), Permissions.READ_ONLY);
+                }
+                barrier.await();
+                for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                    PageId pid = new HeapPageId(tableId, i % TABLE_PAGES);
+                    Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                    if (!p.getId().equals(pid)) {
+                        throw new RuntimeException("got page " + p.getId() + " for " + pid);
+                    }
+                }
+                barrier.await();
+                bp.transactionComplete(tid);
+            } catch (Exception e) {
+                exception = e;
+            }
+        }
+    }
+
+    @Test public void hitThroughput() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        assertEquals(TABLE_PAGES, f.numPages());
+
+        for (int threads : THREAD_COUNTS) {
+            BufferPool bp = Database.resetBufferPool(2 * TABLE_PAGES);
+            TransactionId warm = new TransactionId();
+            for (int i = 0; i < TABLE_PAGES; i++) {
+                bp.getPage(warm, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+            }
+            bp.transactionComplete(warm);
+            bp.resetStats();
+
+            CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+            Reader[] readers = new Reader[threads];
+            for (int i = 0; i < threads; i++) {
+                readers[i] = new Reader(f.getId(), barrier);
+                readers[i].start();
+            }
+            barrier.await();
+            long start = System.nanoTime();
+            barrier.await();
+            long elapsed = System.nanoTime() - start;
+            for (Reader r : readers) {
+                r.join();
+                if (r.exception != null) {
+                    throw new RuntimeException("Child thread threw an exception.", r.exception);
+                }
+            }
+
+            assertEquals(0, bp.getMissCount());
+            assertEquals((long) threads * (TABLE_PAGES + LOOKUPS_PER_THREAD), bp.getHitCount());
+            long lookups = (long) threads * LOOKUPS_PER_THREAD;
+            System.out.println("BufferPoolConcurrencyTest: " + threads + " thread(s), "
+                    + (lookups * 1000000000L / Math.max(1, elapsed)) + " hits/s");
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
@@ -6,6 +6,8 @@ import java.util.HashMap;
 
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 import simpledb.*;
 
 public class JoinTest extends SimpleDbTestBase {
@@ -13,6 +15,19 @@ public class JoinTest extends SimpleDbTestBase {
     public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
             int table2Rows)
             throws IOException, DbException, TransactionAbortedException {
+        validateJoin(table1ColumnValue, table1Rows, table2ColumnValue, table2Rows, -1);
+    }
+
+    /**
+     * Joins two random tables with a nested-loops Join, or with a
+     * HashEquiJoin holding at most memoryTuples tuples in memory if that is
+     * not negative, and checks the result.
+     *
+     * @return the join operator
+     */
+    public Operator validateJoin(Integer table1ColumnValue, int table1Rows, Integer table2ColumnValue,
+            int table2Rows, int memoryTuples)
+            throws IOException, DbException, TransactionAbortedException {
         // Create the two tables
         HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
         columnSpecification.put(0, table1ColumnValue);
@@ -45,13 +60,21 @@ public class JoinTest extends SimpleDbTestBase {
         SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
         SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
         JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
-        Join joinOp = new Join(p, ss1, ss2);
+        Operator joinOp;
+        if (memoryTuples < 0) {
+            joinOp = new Join(p, ss1, ss2);
+        } else {
+            HashEquiJoin hashJoin = new HashEquiJoin(p, ss1, ss2);
+            hashJoin.setMemoryBudget(memoryTuples);
+            joinOp = hashJoin;
+        }
 
         // test the join results
         SystemTestUtil.matchTuples(joinOp, expectedResults);
 
         joinOp.close();
         Database.getBufferPool().transactionComplete(tid);
+        return joinOp;
     }
 
     @Test public void testSingleMatch()
@@ -69,6 +92,30 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    @Test public void testHashJoinInMemory()
+            throws IOException, DbException, TransactionAbortedException {
+        HashEquiJoin j = (HashEquiJoin) validateJoin(null, 500, null, 500, 1000);
+        assertFalse(j.spilled());
+    }
+
+    /**
+     * A build side larger than the memory budget is partitioned to disk.
+     */
+    @Test public void testHashJoinSpills()
+            throws IOException, DbException, TransactionAbortedException {
+        HashEquiJoin j = (HashEquiJoin) validateJoin(null, 3000, null, 2000, 200);
+        assertTrue(j.spilled());
+    }
+
+    /**
+     * With every build tuple on the same key, a single partition is larger
+     * than memory and is joined in chunks.
+     */
+    @Test public void testHashJoinSkew()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(1, 300, 1, 20, 50);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
@@ -427,6 +427,130 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint does not flush the pages of a running transaction,
+        // and the transaction commits after it: its data survives a crash
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 14, 0);
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(t1.getId(), Database.getBufferPool().getPage(t1.getId(), pid, Permissions.READ_ONLY).isDirty());
+        assertTrue(Database.getBufferPool().getDirtyPageTable().isEmpty());
+        insertRow(hf1, t1, 15, 0);
+        t1.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 14, true);
+        look(hf1, t, 15, true);
+        t.commit();
+    }
+
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // without FORCE, a commit only logs its pages; a checkpoint taken
+        // before they are written keeps their records, and recovery
+        // redoes them
+
+        Database.getBufferPool().setForce(false);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 16, 0);
+        insertRow(hf2, t1, 17, 0);
+        t1.commit();
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logTruncate();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 16, true);
+        look(hf2, t, 17, true);
+        t.commit();
+    }
+
+    @Test public void TestUnstartedCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // checkpoint, then T1 inserts without Transaction.start(),
+        // so its log has updates but no BEGIN; its page reaches disk
+        // crash
+        // recovery must still undo T1
+
+        Database.getLogFile().logCheckpoint();
+        Transaction t1 = new Transaction();
+        insertRow(hf1, t1, 32, 0);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 32, false);
+        t.commit();
+    }
+
+    @Test public void TestRecoveryStats()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts into both tables, its pages reach disk, crash
+        // recovery replays both pages, on two threads, and undoes T1
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 30, 0);
+        insertRow(hf2, t1, 31, 0);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRecoveryThreads(2);
+        Database.getLogFile().recover();
+
+        RecoveryStats stats = Database.getLogFile().getRecoveryStats();
+        assertEquals(1, stats.losers);
+        assertEquals(2, stats.pagesReplayed);
+        assertEquals(2, stats.threads);
+        assertEquals(2, stats.recordsUndone);
+        assertTrue(stats.recordsRedone >= 4);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 30, false);
+        look(hf2, t, 31, false);
+        t.commit();
+
+        // a second crash finds nothing left to undo
+        crash();
+        assertEquals(0, Database.getLogFile().getRecoveryStats().losers);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
@@ -3,17 +3,32 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 import simpledb.BufferPool;
 import simpledb.Database;
 import simpledb.DbException;
+import simpledb.HashEquiJoin;
 import simpledb.HeapFile;
 import simpledb.HeapFileEncoder;
+import simpledb.IntField;
+import simpledb.Join;
+import simpledb.LogicalPlan;
+import simpledb.OpIterator;
+import simpledb.Operator;
 import simpledb.Parser;
+import simpledb.ParsingException;
 import simpledb.TableStats;
+import simpledb.TopN;
 import simpledb.Transaction;
 import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
 import simpledb.Utility;
 
 public class QueryTest {
@@ -82,33 +97,17 @@ public class QueryTest {
 	}
 	
 	/**
-	 * Build a large series of tables; then run the command-line query code and execute a query.
+	 * Build a large series of tables; then plan a query through the Parser, run it, and check its result.
 	 * The number of tables is large enough that the query will only succeed within the
 	 * specified time if a join method faster than nested-loops join is available.
 	 * The tables are also too big for a query to be successful if its query plan isn't reasonably efficient,
 	 * and there are too many tables for a brute-force search of all possible query plans.
 	 */
-	// Not required for Lab 4
-	/*@Test(timeout=60000) public void hashJoinTest() throws IOException, DbException, TransactionAbortedException {
+	@Test(timeout=60000) public void hashJoinTest() throws IOException, DbException, TransactionAbortedException {
 		final int IO_COST = 103;
 		
-		HashMap<String, TableStats> stats = new HashMap<String,TableStats>();
-				
 		ArrayList<ArrayList<Integer>> smallHeapFileTuples = new ArrayList<ArrayList<Integer>>();
-		HeapFile smallHeapFileA = SystemTestUtil.createRandomHeapFile(2, 100, Integer.MAX_VALUE, null, smallHeapFileTuples, "c");		
-		HeapFile smallHeapFileB = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");		
-		HeapFile smallHeapFileC = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");		
-		HeapFile smallHeapFileD = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");		
-		HeapFile smallHeapFileE = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");		
-		HeapFile smallHeapFileF = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");		
-		HeapFile smallHeapFileG = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");
-		HeapFile smallHeapFileH = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");
-		HeapFile smallHeapFileI = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");
-		HeapFile smallHeapFileJ = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");
-		HeapFile smallHeapFileK = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");
-		HeapFile smallHeapFileL = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");
-		HeapFile smallHeapFileM = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");
-		HeapFile smallHeapFileN = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");
+		HeapFile smallHeapFileA = SystemTestUtil.createRandomHeapFile(2, 100, Integer.MAX_VALUE, null, smallHeapFileTuples, "c");
 		
 		ArrayList<ArrayList<Integer>> bigHeapFileTuples = new ArrayList<ArrayList<Integer>>();
 		for (int i = 0; i < 1000; i++) {
@@ -116,52 +115,178 @@ public class QueryTest {
 		}
 		HeapFile bigHeapFile = createDuplicateHeapFile(bigHeapFileTuples, 2, "c");
 		Database.getCatalog().addTable(bigHeapFile, "bigTable");
+		TableStats.setTableStats("bigTable", new TableStats(bigHeapFile.getId(), IO_COST));
 
 		// We want a bunch of these guys
 		Database.getCatalog().addTable(smallHeapFileA, "a");
-		Database.getCatalog().addTable(smallHeapFileB, "b");
-		Database.getCatalog().addTable(smallHeapFileC, "c");
-		Database.getCatalog().addTable(smallHeapFileD, "d");
-		Database.getCatalog().addTable(smallHeapFileE, "e");
-		Database.getCatalog().addTable(smallHeapFileF, "f");
-		Database.getCatalog().addTable(smallHeapFileG, "g");
-		Database.getCatalog().addTable(smallHeapFileH, "h");
-		Database.getCatalog().addTable(smallHeapFileI, "i");
-		Database.getCatalog().addTable(smallHeapFileJ, "j");
-		Database.getCatalog().addTable(smallHeapFileK, "k");
-		Database.getCatalog().addTable(smallHeapFileL, "l");
-		Database.getCatalog().addTable(smallHeapFileM, "m");
-		Database.getCatalog().addTable(smallHeapFileN, "n");
-		
-		stats.put("bigTable", new TableStats(bigHeapFile.getId(), IO_COST));
-		stats.put("a", new TableStats(smallHeapFileA.getId(), IO_COST));
-		stats.put("b", new TableStats(smallHeapFileB.getId(), IO_COST));
-		stats.put("c", new TableStats(smallHeapFileC.getId(), IO_COST));
-		stats.put("d", new TableStats(smallHeapFileD.getId(), IO_COST));
-		stats.put("e", new TableStats(smallHeapFileE.getId(), IO_COST));
-		stats.put("f", new TableStats(smallHeapFileF.getId(), IO_COST));
-		stats.put("g", new TableStats(smallHeapFileG.getId(), IO_COST));
-		stats.put("h", new TableStats(smallHeapFileG.getId(), IO_COST));
-		stats.put("i", new TableStats(smallHeapFileG.getId(), IO_COST));
-		stats.put("j", new TableStats(smallHeapFileG.getId(), IO_COST));
-		stats.put("k", new TableStats(smallHeapFileG.getId(), IO_COST));
-		stats.put("l", new TableStats(smallHeapFileG.getId(), IO_COST));
-		stats.put("m", new TableStats(smallHeapFileG.getId(), IO_COST));
-		stats.put("n", new TableStats(smallHeapFileG.getId(), IO_COST));
-
-		Parser.setStatsMap(stats);
-		
-		Transaction t = new Transaction();
-		t.start();
-		Parser.setTransaction(t);
-		
-		// Each of these should return around 20,000
-		// This Parser implementation currently just dumps to stdout, so checking that isn't terribly clean.
-		// So, don't bother for now; future TODO.
-		// Regardless, each of the following should be optimized to run quickly,
-		// even though the worst case takes a very long time.
-		Parser.processNextStatement("SELECT COUNT(a.c0) FROM bigTable, a, b, c, d, e, f, g, h, i, j, k, l, m, n WHERE bigTable.c0 = n.c0 AND a.c1 = b.c1 AND b.c0 = c.c0 AND c.c1 = d.c1 AND d.c0 = e.c0 AND e.c1 = f.c1 AND f.c0 = g.c0 AND g.c1 = h.c1 AND h.c0 = i.c0 AND i.c1 = j.c1 AND j.c0 = k.c0 AND k.c1 = l.c1 AND l.c0 = m.c0 AND m.c1 = n.c1;");
-		Parser.processNextStatement("SELECT COUNT(a.c0) FROM bigTable, a, b, c, d, e, f, g, h, i, j, k, l, m, n WHERE a.c1 = b.c1 AND b.c0 = c.c0 AND c.c1 = d.c1 AND d.c0 = e.c0 AND e.c1 = f.c1 AND f.c0 = g.c0 AND g.c1 = h.c1 AND h.c0 = i.c0 AND i.c1 = j.c1 AND j.c0 = k.c0 AND k.c1 = l.c1 AND l.c0 = m.c0 AND m.c1 = n.c1 AND bigTable.c0 = n.c0;");
-		Parser.processNextStatement("SELECT COUNT(a.c0) FROM bigTable, a, b, c, d, e, f, g, h, i, j, k, l, m, n WHERE k.c1 = l.c1 AND a.c1 = b.c1 AND f.c0 = g.c0 AND bigTable.c0 = n.c0 AND d.c0 = e.c0 AND c.c1 = d.c1 AND e.c1 = f.c1 AND i.c1 = j.c1 AND b.c0 = c.c0 AND g.c1 = h.c1 AND h.c0 = i.c0 AND j.c0 = k.c0 AND m.c1 = n.c1 AND l.c0 = m.c0;");
-	}*/
+		TableStats.setTableStats("a", new TableStats(smallHeapFileA.getId(), IO_COST));
+		for (char c = 'b'; c <= 'n'; c++) {
+			HeapFile small = createDuplicateHeapFile(smallHeapFileTuples, 2, "c");
+			Database.getCatalog().addTable(small, Character.toString(c));
+			TableStats.setTableStats(Character.toString(c), new TableStats(small.getId(), IO_COST));
+		}
+
+		// the joins form a chain from a to n and on to bigTable; count the
+		// rows it produces, one table at a time along the chain
+		long[] paths = new long[smallHeapFileTuples.size()];
+		Arrays.fill(paths, 1);
+		for (char c = 'b'; c <= 'n'; c++) {
+			// a.c1 = b.c1, b.c0 = c.c0, c.c1 = d.c1, ...
+			int col = (c - 'b') % 2 == 0 ? 1 : 0;
+			long[] next = new long[paths.length];
+			for (int i = 0; i < paths.length; i++) {
+				for (int j = 0; j < paths.length; j++) {
+					if (smallHeapFileTuples.get(i).get(col).equals(smallHeapFileTuples.get(j).get(col))) {
+						next[j] += paths[i];
+					}
+				}
+			}
+			paths = next;
+		}
+		long expected = 0;
+		for (ArrayList<Integer> row : bigHeapFileTuples) {
+			for (int j = 0; j < paths.length; j++) {
+				if (row.get(0).equals(smallHeapFileTuples.get(j).get(0))) expected += paths[j];
+			}
+		}
+
+		// The same query with its predicates in three orders; each should be
+		// optimized to run quickly, even though the worst case takes a very
+		// long time.
+		TransactionId tid = new TransactionId();
+		assertEquals(expected, count(tid, "SELECT COUNT(a.c0) FROM bigTable, a, b, c, d, e, f, g, h, i, j, k, l, m, n WHERE bigTable.c0 = n.c0 AND a.c1 = b.c1 AND b.c0 = c.c0 AND c.c1 = d.c1 AND d.c0 = e.c0 AND e.c1 = f.c1 AND f.c0 = g.c0 AND g.c1 = h.c1 AND h.c0 = i.c0 AND i.c1 = j.c1 AND j.c0 = k.c0 AND k.c1 = l.c1 AND l.c0 = m.c0 AND m.c1 = n.c1;"));
+		assertEquals(expected, count(tid, "SELECT COUNT(a.c0) FROM bigTable, a, b, c, d, e, f, g, h, i, j, k, l, m, n WHERE a.c1 = b.c1 AND b.c0 = c.c0 AND c.c1 = d.c1 AND d.c0 = e.c0 AND e.c1 = f.c1 AND f.c0 = g.c0 AND g.c1 = h.c1 AND h.c0 = i.c0 AND i.c1 = j.c1 AND j.c0 = k.c0 AND k.c1 = l.c1 AND l.c0 = m.c0 AND m.c1 = n.c1 AND bigTable.c0 = n.c0;"));
+		assertEquals(expected, count(tid, "SELECT COUNT(a.c0) FROM bigTable, a, b, c, d, e, f, g, h, i, j, k, l, m, n WHERE k.c1 = l.c1 AND a.c1 = b.c1 AND f.c0 = g.c0 AND bigTable.c0 = n.c0 AND d.c0 = e.c0 AND c.c1 = d.c1 AND e.c1 = f.c1 AND i.c1 = j.c1 AND b.c0 = c.c0 AND g.c1 = h.c1 AND h.c0 = i.c0 AND j.c0 = k.c0 AND m.c1 = n.c1 AND l.c0 = m.c0;"));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * @return the single value a COUNT query returns
+	 */
+	private static int count(TransactionId tid, String query) throws DbException, TransactionAbortedException, IOException {
+		try {
+			LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+			OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+			plan.open();
+			int count = ((IntField) plan.next().getField(0)).getValue();
+			assertFalse(plan.hasNext());
+			plan.close();
+			return count;
+		} catch (ParsingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the first join in the plan, or null if there is none
+	 */
+	private static OpIterator findJoin(OpIterator plan) {
+		if (plan instanceof Join || plan instanceof HashEquiJoin) return plan;
+		if (!(plan instanceof Operator)) return null;
+		for (OpIterator child : ((Operator) plan).getChildren()) {
+			OpIterator join = findJoin(child);
+			if (join != null) return join;
+		}
+		return null;
+	}
+
+	/**
+	 * Join two tables of 20,000 rows on a column with about as many distinct
+	 * values. A nested-loops join would compare 400 million pairs; the plan
+	 * must use a hash join, which reads each table once.
+	 */
+	@Test(timeout=120000) public void largeEquiJoinTest() throws IOException, DbException, TransactionAbortedException, ParsingException {
+		final int ROWS = 20000;
+		ArrayList<ArrayList<Integer>> tuples1 = new ArrayList<ArrayList<Integer>>();
+		HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, ROWS, ROWS, null, tuples1, "c");
+		Database.getCatalog().addTable(table1, "big1");
+		TableStats.setTableStats("big1", new TableStats(table1.getId(), 101));
+		ArrayList<ArrayList<Integer>> tuples2 = new ArrayList<ArrayList<Integer>>();
+		HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, ROWS, ROWS, null, tuples2, "c");
+		Database.getCatalog().addTable(table2, "big2");
+		TableStats.setTableStats("big2", new TableStats(table2.getId(), 101));
+
+		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for (ArrayList<Integer> t : tuples1) {
+			Integer n = counts.get(t.get(0));
+			counts.put(t.get(0), n == null ? 1 : n + 1);
+		}
+		int expected = 0;
+		for (ArrayList<Integer> t : tuples2) {
+			Integer n = counts.get(t.get(0));
+			if (n != null) expected += n;
+		}
+
+		TransactionId tid = new TransactionId();
+		LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM big1, big2 WHERE big1.c0 = big2.c0;");
+		OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+		assertTrue(plan.toString(), findJoin(plan) instanceof HashEquiJoin);
+		plan.open();
+		int count = 0;
+		while (plan.hasNext()) {
+			plan.next();
+			count++;
+		}
+		plan.close();
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(expected, count);
+	}
+
+	/**
+	 * LIMIT, which ZQL does not parse, caps the rows of a query, and with an
+	 * ORDER BY keeps the first rows of the order.
+	 */
+	@Test public void limitTest() throws IOException, DbException, TransactionAbortedException, ParsingException {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 3000, null, tuples, "c");
+		Database.getCatalog().addTable(table, "lim");
+		TableStats.setTableStats("lim", new TableStats(table.getId(), 101));
+
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for (ArrayList<Integer> t : tuples) {
+			values.add(t.get(0));
+		}
+		Collections.sort(values, Collections.reverseOrder());
+
+		TransactionId tid = new TransactionId();
+		LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM lim ORDER BY lim.c0 DESC limit 10;");
+		OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+		assertTrue(plan.toString(), ((Operator) plan).getChildren()[0] instanceof TopN);
+		plan.open();
+		for (int i = 0; i < 10; i++) {
+			assertTrue(plan.hasNext());
+			assertEquals(values.get(i).intValue(), ((IntField) plan.next().getField(0)).getValue());
+		}
+		assertFalse(plan.hasNext());
+		plan.close();
+
+		lp = new Parser().generateLogicalPlan(tid, "SELECT lim.c1 FROM lim WHERE lim.c0 > 0 LIMIT 7;");
+		plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+		plan.open();
+		int count = 0;
+		while (plan.hasNext()) {
+			plan.next();
+			count++;
+		}
+		plan.close();
+		assertEquals(7, count);
+
+		// only a LIMIT that ends the first statement counts
+		int positive = 0;
+		for (int v : values) {
+			if (v > 0)
+				positive++;
+		}
+		lp = new Parser().generateLogicalPlan(tid, "SELECT lim.c1 FROM lim WHERE lim.c0 > 0; SELECT * FROM lim LIMIT 5;");
+		plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+		plan.open();
+		count = 0;
+		while (plan.hasNext()) {
+			plan.next();
+			count++;
+		}
+		plan.close();
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(positive, count);
+	}
 }
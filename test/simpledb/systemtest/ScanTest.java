@@ -43,6 +43,33 @@ public class ScanTest extends SimpleDbTestBase {
         validateScan(columnSizes, rowSizes);
     }
 
+    /** Scan tables larger than the pool with pages kept in off-heap frames. */
+    @Test public void testOffHeapFrames() throws IOException, DbException, TransactionAbortedException {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES, new LRUEvictionPolicy(), true);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * BufferPool.DEFAULT_PAGES * 2, null, tuples);
+
+        // a page read into a frame holds on to it
+        FrameArena arena = Database.getBufferPool().getFrameArena();
+        TransactionId tid = new TransactionId();
+        Page page = Database.getBufferPool().getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(arena.getNumFrames() - 1, arena.getFreeFrames());
+        Database.getBufferPool().transactionComplete(tid);
+
+        SystemTestUtil.matchTuples(f, tuples);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(tuples.get(0), SystemTestUtil.tupleToList(((HeapPage) page).iterator().next()));
+
+        // pages that leave the pool give their frames back, even while a
+        // page is still held, as page 0 is here
+        for (int i = 0; i < f.numPages(); i++) {
+            Database.getBufferPool().discardPage(new HeapPageId(f.getId(), i));
+        }
+        assertEquals(arena.getNumFrames(), arena.getFreeFrames());
+        assertEquals(tuples.get(0), SystemTestUtil.tupleToList(((HeapPage) page).iterator().next()));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
     /** Test that rewinding a SeqScan iterator works. */
     @Test public void testRewind() throws IOException, DbException, TransactionAbortedException {
         ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();